@@ -0,0 +1,72 @@
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs one DBproject data access operation against a local database
+ * loaded with data/*.csv or a DataGenerator copy of it. The database is
+ * taken from the bench.db, bench.port and bench.user properties, by
+ * default the ones run.sh uses. Query output goes to /dev/null.
+ *
+ * BOOK goes through BookingEngine.book and changes the data: appointments
+ * move from AV to AC to WL and stay there, so after warm up it measures
+ * the waitlist path. Run it against a scratch database.
+ *
+ */
+
+public class DataAccessWorkload implements bench.Workload{
+	private static final String[] STATUSES = { "AV", "AC", "WL", "PA" };
+
+	private final String _operation;
+	private final DBproject _esql;
+	private final int[] _doctors;
+	//patient, doctor and appointment of each search of an appointment not past
+	private final int[][] _searches;
+
+	public DataAccessWorkload(String operation) throws Exception {
+		this._operation = operation;
+		System.setProperty("dbproject.output", "/dev/null");
+		String user = System.getProperty("bench.user", System.getenv("USER"));
+		this._esql = new DBproject(System.getProperty("bench.db", user + "_DB"),
+			System.getProperty("bench.port", System.getenv("PGPORT") != null ? System.getenv("PGPORT") : "5432"), user, "");
+
+		//one row per appointment, so doctors are picked as often as they have appointments
+		List<List<String>> doctors = this._esql.executeQueryAndReturnResult(
+			"SELECT H.doctor_id FROM has_appointment H, Appointment A WHERE A.appnt_ID = H.appt_id AND A.status <> 'PA';");
+		List<List<String>> searches = this._esql.executeQueryAndReturnResult(
+			"SELECT S.pid, H.doctor_id, H.appt_id FROM searches S, has_appointment H, Appointment A WHERE S.aid = H.appt_id AND A.appnt_ID = H.appt_id AND A.status <> 'PA';");
+		if (doctors.isEmpty() || searches.isEmpty()) throw new IllegalStateException("load the data first, see load.sh");
+		this._doctors = new int[doctors.size()];
+		for (int i = 0; i < doctors.size(); ++i)
+			this._doctors[i] = Integer.parseInt(doctors.get(i).get(0).trim());
+		this._searches = new int[searches.size()][3];
+		for (int i = 0; i < searches.size(); ++i)
+			for (int j = 0; j < 3; ++j)
+				this._searches[i][j] = Integer.parseInt(searches.get(i).get(j).trim());
+	}
+
+	public long run() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int pick = random.nextInt(this._doctors.length);
+		switch (this._operation){
+			case "RETURN_RESULT":	//option 5 collected into lists
+				return this._esql.executeQueryAndReturnResult(DBproject.APPOINTMENTS_OF_DOCTOR_SQL,
+					this._doctors[pick], "1/1/1900", "12/31/2100").size();
+			case "PRINT_RESULT":	//option 5 through ResultPrinter
+				return this._esql.executeQueryAndPrintResult(DBproject.APPOINTMENTS_OF_DOCTOR_SQL,
+					this._doctors[pick], "1/1/1900", "12/31/2100");
+			case "APPOINTMENTS_PER_DOCTOR":	//option 7
+				return this._esql.executeQueryAndPrintResult(this._esql.appointmentsPerDoctorQuery());
+			case "PATIENTS_PER_DOCTOR":	//option 8
+				return this._esql.executeQueryAndPrintResult(this._esql.patientsPerDoctorQuery(), STATUSES[random.nextInt(STATUSES.length)]);
+			case "BOOK":	//option 4, which only books an appointment the patient searched
+				int[] search = this._searches[random.nextInt(this._searches.length)];
+				return this._esql.getBookingEngine().book(search[0], search[1], search[2]).ordinal();
+			default:
+				throw new IllegalArgumentException("unknown operation " + this._operation);
+		}
+	}
+
+	public void close(){
+		this._esql.cleanup();
+	}
+}
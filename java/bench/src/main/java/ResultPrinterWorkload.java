@@ -0,0 +1,97 @@
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Prints a result shaped like option 5 (Appointment joined with
+ * has_appointment) to /dev/null, either with the old cell-by-cell
+ * System.out printer or with ResultPrinter in a given format.
+ *
+ */
+
+public class ResultPrinterWorkload implements bench.Workload{
+	private static final String[] NAMES = { "appnt_id", "adate", "time_slot", "status", "appt_id", "doctor_id" };
+	private static final int[] KINDS = { Row.LONG, Row.DATE, Row.TEXT, Row.TEXT, Row.LONG, Row.LONG };
+	private static final String[] SLOTS = { "8:00-10:00", "10:00-12:00", "13:00-15:00", "15:00-17:00" };
+	private static final String[] STATUSES = { "AV", "AC", "WL", "PA" };
+
+	private final int _rows;
+	//LEGACY for the old printer, otherwise a ResultPrinter.Format name
+	private final String _format;
+	private final long[] _ids;
+	private final long[] _days;
+	private final String[] _slots;
+	private final String[] _statuses;
+	private final long[] _doctors;
+	private final Row _row;
+	private final PrintStream _legacyOut;
+
+	public ResultPrinterWorkload(String rows, String format) throws Exception {
+		this._rows = Integer.parseInt(rows);
+		this._format = format;
+		Random random = new Random(166);
+		this._ids = new long[this._rows];
+		this._days = new long[this._rows];
+		this._slots = new String[this._rows];
+		this._statuses = new String[this._rows];
+		this._doctors = new long[this._rows];
+		for (int i = 0; i < this._rows; ++i){
+			this._ids[i] = i;
+			this._days[i] = 18262 + random.nextInt(1500);
+			this._slots[i] = SLOTS[random.nextInt(SLOTS.length)];
+			this._statuses[i] = STATUSES[random.nextInt(STATUSES.length)];
+			this._doctors[i] = random.nextInt(250);
+		}//end for
+		this._row = new Row(NAMES, KINDS);
+		//same as System.out: no buffering apart from the autoflush on newline
+		this._legacyOut = new PrintStream(new FileOutputStream("/dev/null"), true);
+	}
+
+	private Row fill(int i){
+		this._row.setLong(1, this._ids[i]);
+		this._row.setLong(2, this._days[i]);
+		this._row.setString(3, this._slots[i]);
+		this._row.setString(4, this._statuses[i]);
+		this._row.setLong(5, this._ids[i]);
+		this._row.setLong(6, this._doctors[i]);
+		return this._row;
+	}
+
+	public long run() throws Exception {
+		if (this._format.equals("LEGACY")) return legacy();
+		ResultPrinter printer = new ResultPrinter(ResultPrinter.writer(new FileOutputStream("/dev/null")),
+			ResultPrinter.Format.valueOf(this._format), true);
+		for (int r = 0; r < this._rows; ++r)
+			printer.visit(fill(r));
+		printer.finish();
+		return this._rows;
+	}
+
+	/**
+	 * The loop executeQueryAndPrintResult used before ResultPrinter.
+	 */
+	private long legacy(){
+		PrintStream out = this._legacyOut;
+		int numCol = NAMES.length;
+		long rowCount = 0;
+		boolean outputHeader = true;
+		for (int r = 0; r < this._rows; ++r){
+			Row row = fill(r);
+			if (outputHeader){
+				for (int i = 1; i <= numCol; i++)
+					out.print(row.getColumnName(i) + "\t");
+				out.println();
+				outputHeader = false;
+			}//end if
+			for (int i = 1; i <= numCol; ++i)
+				out.print(row.getString(i) + "\t");
+			out.println();
+			++rowCount;
+		}//end for
+		return rowCount;
+	}
+
+	public void close(){
+		this._legacyOut.close();
+	}
+}
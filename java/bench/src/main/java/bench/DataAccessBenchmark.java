@@ -0,0 +1,55 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The data access paths of the menu options against a local database:
+ * executeQueryAndReturnResult, executeQueryAndPrintResult, the booking
+ * transaction and the aggregates of options 7 and 8. Needs a database
+ * loaded with load.sh, see DataAccessWorkload for the connection
+ * properties. Add -prof gc for the allocation rate and -t for more
+ * threads sharing the one DBproject.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DataAccessBenchmark{
+	@Param({ "RETURN_RESULT", "PRINT_RESULT", "APPOINTMENTS_PER_DOCTOR", "PATIENTS_PER_DOCTOR", "BOOK" })
+	public String operation;
+
+	private Workload _workload;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this._workload = Workloads.create("DataAccessWorkload", this.operation);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._workload.close();
+	}
+
+	@Benchmark
+	public long operation() throws Exception {
+		return this._workload.run();
+	}
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the old cell-by-cell System.out printer (LEGACY) with
+ * ResultPrinter in each of its formats on a 100k row result.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultPrinterBenchmark{
+	@Param({ "100000" })
+	public String rows;
+
+	@Param({ "LEGACY", "TSV", "ALIGNED", "CSV", "JSONL" })
+	public String format;
+
+	private Workload _workload;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this._workload = Workloads.create("ResultPrinterWorkload", this.rows, this.format);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._workload.close();
+	}
+
+	@Benchmark
+	public long print() throws Exception {
+		return this._workload.run();
+	}
+}
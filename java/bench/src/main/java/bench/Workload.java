@@ -0,0 +1,21 @@
+package bench;
+
+/**
+ * One unit of benchmark work. JMH benchmarks must live in a named package
+ * and so can not see the DBproject classes, which are in the default
+ * package. The workloads that call into them are written in the default
+ * package, implement this interface and are loaded by name.
+ *
+ */
+
+public interface Workload{
+	/**
+	 * @return a value derived from the work done, so it is not optimized away
+	 */
+	long run() throws Exception;
+
+	/**
+	 * Releases whatever the workload holds open.
+	 */
+	void close() throws Exception;
+}
@@ -0,0 +1,25 @@
+package bench;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Creates default package workloads by class name.
+ *
+ */
+
+public final class Workloads{
+	private Workloads(){
+	}
+
+	/**
+	 * @param className the workload class in the default package
+	 * @param args passed to its constructor taking String arguments
+	 */
+	public static Workload create(String className, String... args) throws Exception {
+		Class<?> c = Class.forName(className);
+		Class<?>[] types = new Class<?>[args.length];
+		for (int i = 0; i < types.length; ++i) types[i] = String.class;
+		Constructor<?> ctor = c.getConstructor(types);
+		return (Workload) ctor.newInstance((Object[]) args);
+	}
+}
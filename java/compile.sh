@@ -1,3 +1,6 @@
 #! /bin/bash
-rm -rf bin/*.class
-javac -cp ".;lib/postgresql-42.1.4.jar;" src/DBproject.java -d bin/
+mkdir -p bin
+rm -rf bin/*.class bin/dbproject.jar bin/dbproject.jsa
+javac -cp ".:lib/postgresql-42.1.4.jar" src/*.java -d bin/
+# class data sharing only archives classes from jars, see fast.sh
+(cd bin && jar cf dbproject.jar *.class)
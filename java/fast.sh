@@ -0,0 +1,26 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Starts the menu for short sessions: the classes come from a class data
+# sharing archive, the database is connected in the background while the
+# menu is shown, and the JIT stops at its quick first tier.
+# The time to the first query is printed on exit.
+#
+# ./fast.sh archive builds the archive (JDK 13 or later) from a session
+# that lists the appointment counts (option 7); rebuild it after compile.sh.
+CP=lib/postgresql-42.1.4.jar:bin/dbproject.jar
+JSA=bin/dbproject.jsa
+
+if [ "$1" == "archive" ]; then
+	rm -f $JSA
+	printf '7\n10\n' | java -XX:ArchiveClassesAtExit=$JSA -Ddbproject.fastStart=true -cp $CP DBproject $DBNAME $PORT $USER > /dev/null
+	exit $?
+fi
+
+SHARE=""
+if [ -f $JSA ]; then
+	SHARE="-XX:SharedArchiveFile=$JSA"
+fi
+java $SHARE -XX:TieredStopAtLevel=1 -Ddbproject.fastStart=true -Ddbproject.launchMs=$(date +%s%3N) -cp $CP DBproject $DBNAME $PORT $USER
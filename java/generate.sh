@@ -0,0 +1,4 @@
+#! /bin/bash
+# Writes the data/*.csv files scaled by the given factor to ../data/x<factor>
+# Example: ./generate.sh 100 && ./load.sh ../data/x100
+java -cp lib/*:bin/ DataGenerator ${1:-10} ../data
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Loads ../data/*.csv, or the csv files of the given directory, through
+# COPY FROM STDIN, rejected rows go to rejects.txt
+java -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER ${1:-../data} rejects.txt
@@ -0,0 +1,7 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Applies the sql/migrations files not applied yet, in name order
+java -cp lib/*:bin/ SchemaMigrator $DBNAME $PORT $USER ../sql/migrations
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Streams the appointment status changes to standard output as JSON lines,
+# from where the consumer (default "stdout") left off
+java -cp lib/*:bin/ OutboxConsumer $DBNAME $PORT $USER "$@"
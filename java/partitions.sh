@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Creates the Appointment partitions of the coming months (3 by default)
+# and, when given an age in days, archives the older appointments as past
+java -cp lib/*:bin/ PartitionMaintainer $DBNAME $PORT $USER "$@"
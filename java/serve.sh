@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Serves the menu operations over HTTP, on port 8080 unless given
+# Example: ./serve.sh 8080
+java -cp lib/*:bin/ ApiServer $DBNAME $PORT $USER $1
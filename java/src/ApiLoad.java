@@ -0,0 +1,98 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * This class is a load generator for ApiServer. It keeps a fixed number
+ * of requests outstanding, cycling through the given paths, and reports
+ * the throughput, the latency percentiles and the count of each status
+ * code. A path starting with "POST " is sent as a POST, its query string
+ * as a form body.
+ *
+ * Example:
+ *   java ApiLoad http://localhost:8080 2000 100000 "/doctors/appointment-counts" "/doctors/patient-counts?status=AC"
+ *
+ */
+
+public class ApiLoad{
+	public static final long TIMEOUT_MS = Long.getLong("dbproject.load.timeoutMs", 30000);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1){
+			System.err.println("Usage: java [-classpath <classpath>] " + ApiLoad.class.getName()
+				+ " <base url> [concurrency=1000] [requests=20000] [path...]");
+			return;
+		}//end if
+		String base = args[0];
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final int total = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+		String[] paths = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[] { "/doctors/appointment-counts" };
+
+		HttpRequest[] requests = new HttpRequest[paths.length];
+		for (int i = 0; i < paths.length; ++i){
+			String path = paths[i];
+			HttpRequest.Builder builder;
+			if (path.startsWith("POST ")){
+				path = path.substring(5);
+				int q = path.indexOf('?');
+				String form = q < 0 ? "" : path.substring(q + 1);
+				builder = HttpRequest.newBuilder(URI.create(base + (q < 0 ? path : path.substring(0, q))))
+					.header("Content-Type", "application/x-www-form-urlencoded")
+					.POST(HttpRequest.BodyPublishers.ofString(form));
+			}else{
+				builder = HttpRequest.newBuilder(URI.create(base + path)).GET();
+			}//end if
+			requests[i] = builder.timeout(Duration.ofMillis(TIMEOUT_MS)).build();
+		}//end for
+
+		HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofMillis(TIMEOUT_MS)).build();
+		final long[] latencies = new long[total];
+		final Map<String, Integer> codes = new TreeMap<String, Integer>();
+		final Semaphore outstanding = new Semaphore(concurrency);
+		final CountDownLatch done = new CountDownLatch(total);
+		final AtomicInteger completed = new AtomicInteger();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < total; ++i){
+			outstanding.acquire();
+			final long sent = System.nanoTime();
+			client.sendAsync(requests[i % requests.length], HttpResponse.BodyHandlers.discarding())
+				.whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>(){
+					public void accept(HttpResponse<Void> response, Throwable error){
+						long nanos = System.nanoTime() - sent;
+						String code = error != null ? (error.getCause() != null ? error.getCause() : error).getClass().getSimpleName() : String.valueOf(response.statusCode());
+						synchronized (codes){
+							latencies[completed.getAndIncrement()] = nanos;
+							Integer count = codes.get(code);
+							codes.put(code, count == null ? 1 : count + 1);
+						}
+						outstanding.release();
+						done.countDown();
+					}
+				});
+		}//end for
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Arrays.sort(latencies);
+		System.out.println(String.format("%d requests, %d outstanding, %.2f s (%.0f requests/s)", total, concurrency, seconds, total / seconds));
+		System.out.println(String.format("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+			percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99), percentile(latencies, 0.999),
+			latencies[total - 1] / 1e6));
+		System.out.println("responses: " + codes);
+	}
+
+	private static double percentile(long[] sorted, double p){
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+}
@@ -0,0 +1,470 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the menu operations of DBproject over HTTP, so one
+ * process can serve many clients without a terminal. Parameters are taken
+ * from the query string or a form encoded body, and responses are JSON:
+ * one object, or one object per row (JSON lines) for the list operations.
+ *
+ *   POST /doctors                  name, specialty, did
+ *   POST /patients                 name, gender, age, address, appointments
+ *   POST /appointments             date, time_slot, status[, doctor]
+ *   POST /bookings                 patient, doctor, appointment
+ *   GET  /doctors/appointments     doctor, from, to
+ *   GET  /departments/available    dept, date
+ *   GET  /doctors/appointment-counts
+ *   GET  /doctors/patient-counts   status
+ *   GET  /reports                  name: weekly, staff or conversion
+ *   GET  /stats
+ *   GET  /metrics                  the QueryMetrics table, as text
+ *
+ * Every request gets its own thread, up to dbproject.server.threads, and
+ * at most dbproject.server.queue more wait for one; past that a request
+ * is answered 503 right away, on the thread that accepted it. At most dbproject.server.maxInFlight requests use the database at once;
+ * a request that can not get in within dbproject.server.admitTimeoutMs is
+ * answered 503 with a Retry-After header instead of piling up.
+ *
+ */
+
+public class ApiServer{
+	public static final int DEFAULT_HTTP_PORT = Integer.getInteger("dbproject.server.port", 8080);
+	public static final int THREADS = Integer.getInteger("dbproject.server.threads", 512);
+	public static final int QUEUE = Integer.getInteger("dbproject.server.queue", 1024);
+	public static final int MAX_IN_FLIGHT = Integer.getInteger("dbproject.server.maxInFlight", ConnectionPool.DEFAULT_MAX_SIZE);
+	public static final long ADMIT_TIMEOUT_MS = Long.getLong("dbproject.server.admitTimeoutMs", 1000);
+	public static final int MAX_BODY = 1 << 16;
+	//free slots offered with a booking the doctor has no room for
+	private static final int SUGGESTIONS = 3;
+
+	static{
+		//headers and body go out in separate writes, without this every
+		//keep-alive response waits out the client's delayed ack
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * A request parameter that is missing or malformed, answered with 400.
+	 */
+	static class BadRequest extends Exception{
+		private static final long serialVersionUID = 1L;
+
+		BadRequest(String message){
+			super(message);
+		}
+	}
+
+	/**
+	 * The parameters of one request and where its response goes.
+	 */
+	static class Request{
+		final HttpExchange exchange;
+		final Map<String, String> params;
+
+		Request(HttpExchange exchange, Map<String, String> params){
+			this.exchange = exchange;
+			this.params = params;
+		}
+
+		String string(String name) throws BadRequest {
+			String value = this.params.get(name);
+			if (value == null || value.isEmpty()) throw new BadRequest("missing parameter '" + name + "'");
+			return value;
+		}
+
+		int integer(String name) throws BadRequest {
+			String value = string(name);
+			try{
+				return Integer.parseInt(value.trim());
+			}catch (NumberFormatException e){
+				throw new BadRequest("parameter '" + name + "' is not an integer: " + value);
+			}//end try
+		}
+	}
+
+	/**
+	 * One operation. Writes its own response on success.
+	 */
+	interface Operation{
+		void handle(Request request) throws BadRequest, SQLException, IOException;
+	}
+
+	private final DBproject _esql;
+	private final HttpServer _server;
+	private final ThreadPoolExecutor _executor;
+	private final Semaphore _admitted;
+	private final int _maxInFlight;
+
+	private final AtomicLong _served = new AtomicLong();
+	private final AtomicLong _rejected = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	//set while a request the executor had no room for runs on the accepting thread
+	private static final ThreadLocal<Boolean> SHED = new ThreadLocal<Boolean>();
+
+	public ApiServer(DBproject esql, int port, int threads, int maxInFlight) throws IOException {
+		this._esql = esql;
+		this._maxInFlight = maxInFlight;
+		this._admitted = new Semaphore(maxInFlight, true);
+		this._executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory(){
+			private final AtomicInteger _count = new AtomicInteger();
+
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "api-" + this._count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}, new RejectedExecutionHandler(){
+			//the exchange only exists once the server runs r, so r runs here and dispatch answers 503
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor){
+				if (executor.isShutdown()) throw new RejectedExecutionException("server stopped");
+				SHED.set(Boolean.TRUE);
+				try{
+					r.run();
+				}finally{
+					SHED.remove();
+				}
+			}
+		});
+		this._executor.allowCoreThreadTimeOut(true);
+
+		this._server = HttpServer.create(new InetSocketAddress(port), threads);
+		this._server.setExecutor(this._executor);
+		route("POST", "/doctors", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { addDoctor(r); }
+		});
+		route("POST", "/patients", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { addPatient(r); }
+		});
+		route("POST", "/appointments", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { addAppointment(r); }
+		});
+		route("POST", "/bookings", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { makeAppointment(r); }
+		});
+		route("GET", "/doctors/appointments", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException {
+				rows(r, DBproject.APPOINTMENTS_OF_DOCTOR_SQL, r.integer("doctor"), r.string("from"), r.string("to"));
+			}
+		});
+		route("GET", "/departments/available", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { listAvailable(r); }
+		});
+		route("GET", "/doctors/appointment-counts", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { rows(r, _esql.appointmentsPerDoctorQuery()); }
+		});
+		route("GET", "/doctors/patient-counts", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException {
+				rows(r, _esql.patientsPerDoctorQuery(), status(r.string("status")));
+			}
+		});
+		route("GET", "/reports", new Operation(){
+			public void handle(Request r) throws BadRequest, SQLException, IOException { report(r); }
+		});
+		this._server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = _esql.getMetrics().dump().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		this._server.createContext("/stats", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "{\"served\":" + _served.get() + ",\"rejected\":" + _rejected.get() + ",\"failed\":" + _failed.get()
+					+ ",\"inFlight\":" + (_maxInFlight - _admitted.availablePermits()) + ",\"waiting\":" + _admitted.getQueueLength()
+					+ ",\"pool\":\"" + ResultPrinter.jsonEscape(_esql.getPool().stats()) + "\"}\n");
+			}
+		});
+	}
+
+	public void start(){
+		this._server.start();
+	}
+
+	public void stop(int delaySeconds){
+		this._server.stop(delaySeconds);
+		this._executor.shutdown();
+	}
+
+	private void route(final String method, String path, final Operation operation){
+		this._server.createContext(path, new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				dispatch(exchange, method, operation);
+			}
+		});
+	}
+
+	private void dispatch(HttpExchange exchange, String method, Operation operation) throws IOException {
+		try{
+			//contexts match by prefix, only the exact path is an operation
+			if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())){
+				error(exchange, 404, "no operation at " + exchange.getRequestURI().getPath());
+				return;
+			}//end if
+			if (!exchange.getRequestMethod().equals(method)){
+				exchange.getResponseHeaders().set("Allow", method);
+				error(exchange, 405, "use " + method);
+				return;
+			}//end if
+			if (SHED.get() != null){
+				this._rejected.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				error(exchange, 503, "server busy, retry later");
+				return;
+			}//end if
+			Request request = new Request(exchange, params(exchange));
+			boolean admitted;
+			try{
+				admitted = this._admitted.tryAcquire(ADMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				admitted = false;
+			}//end try
+			if (!admitted){
+				this._rejected.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				error(exchange, 503, "server busy, retry later");
+				return;
+			}//end if
+			try{
+				operation.handle(request);
+				this._served.incrementAndGet();
+			}finally{
+				this._admitted.release();
+			}
+		}catch (BadRequest e){
+			error(exchange, 400, e.getMessage());
+		}catch (SQLException e){
+			this._failed.incrementAndGet();
+			error(exchange, 500, e.getMessage());
+		}catch (RuntimeException e){
+			this._failed.incrementAndGet();
+			error(exchange, 500, String.valueOf(e.getMessage()));
+		}finally{
+			exchange.close();
+		}
+	}
+
+	private void addDoctor(Request r) throws BadRequest, SQLException, IOException {
+		String name = r.string("name");
+		String specialty = r.string("specialty");
+		int did = r.integer("did");
+		int id = this._esql.getIdAllocator().nextInt(IdAllocator.DOCTOR);
+		this._esql.executeUpdate(DBproject.ADD_DOCTOR_SQL, id, name, specialty, did);
+		send(r.exchange, 201, "{\"id\":" + id + "}\n");
+	}
+
+	private void addPatient(Request r) throws BadRequest, SQLException, IOException {
+		String name = r.string("name");
+		String gender = r.string("gender");
+		if (!gender.equals("F") && !gender.equals("M")) throw new BadRequest("gender must be F or M");
+		int age = r.integer("age");
+		String address = r.string("address");
+		int appointments = r.params.containsKey("appointments") ? r.integer("appointments") : 0;
+		if (age < 0 || appointments < 0) throw new BadRequest("age and appointments can not be negative");
+		int id = this._esql.getIdAllocator().nextInt(IdAllocator.PATIENT);
+		this._esql.executeUpdate(DBproject.ADD_PATIENT_SQL, id, name, gender, age, address, appointments);
+		send(r.exchange, 201, "{\"id\":" + id + "}\n");
+	}
+
+	private void addAppointment(Request r) throws BadRequest, SQLException, IOException {
+		String date = r.string("date");
+		String timeSlot = r.string("time_slot");
+		String status = status(r.string("status"));
+		if (ScheduleEngine.parseSlot(timeSlot) < 0) throw new BadRequest("time_slot must be HH:MM-HH:MM within one day");
+		int id = this._esql.getIdAllocator().nextInt(IdAllocator.APPOINTMENT);
+		if (!r.params.containsKey("doctor")){
+			this._esql.executeUpdate(DBproject.ADD_APPOINTMENT_SQL, id, date, timeSlot, status);
+		}else{
+			int doctor = r.integer("doctor");
+			if (!this._esql.getBookingEngine().add(id, date, timeSlot, status, doctor)){
+				send(r.exchange, 409, "{\"outcome\":\"CONFLICT\",\"suggestions\":" + json(this._esql.suggestSlots(doctor, date, timeSlot, SUGGESTIONS)) + "}\n");
+				return;
+			}//end if
+		}//end if
+		send(r.exchange, 201, "{\"id\":" + id + "}\n");
+	}
+
+	private void makeAppointment(Request r) throws BadRequest, SQLException, IOException {
+		int doctor = r.integer("doctor");
+		int appointment = r.integer("appointment");
+		BookingEngine.Outcome outcome = this._esql.getBookingEngine().book(r.integer("patient"), doctor, appointment);
+		String suggestions = outcome == BookingEngine.Outcome.CONFLICT
+			? ",\"suggestions\":" + json(this._esql.suggestSlots(doctor, appointment, SUGGESTIONS)) : "";
+		send(r.exchange, 200, "{\"outcome\":\"" + outcome + "\"" + suggestions + "}\n");
+	}
+
+	//the suggested slots hold digits, '/', ':', '-' and spaces only
+	private static String json(List<String> values){
+		StringBuilder sb = new StringBuilder("[");
+		for (String value : values){
+			if (sb.length() > 1) sb.append(',');
+			sb.append('"').append(value).append('"');
+		}//end for
+		return sb.append(']').toString();
+	}
+
+	private void listAvailable(Request r) throws BadRequest, SQLException, IOException {
+		String dept = r.string("dept");
+		String date = r.string("date");
+		Writer out = rowsResponse(r.exchange);
+		ResultPrinter printer = new ResultPrinter(out, ResultPrinter.Format.JSONL, true);
+		this._esql.listAvailableAppointments(dept, date, printer);
+		printer.finish();
+	}
+
+	private void report(Request r) throws BadRequest, SQLException, IOException {
+		ReportEngine.Report report = ReportEngine.report(r.string("name"));
+		if (report == null) throw new BadRequest("name must be one of weekly, staff, conversion");
+		ReportEngine.Run run = this._esql.getReportEngine().start(report, null);
+		try{
+			run.await(Long.MAX_VALUE);
+		}catch (InterruptedException e){
+			run.cancel();
+			Thread.currentThread().interrupt();
+			throw new SQLException("report interrupted");
+		}//end try
+		Writer out = rowsResponse(r.exchange);
+		ResultPrinter printer = new ResultPrinter(out, ResultPrinter.Format.JSONL, true);
+		run.visit(printer);
+		printer.finish();
+	}
+
+	private void rows(Request r, String query, Object... params) throws SQLException, IOException {
+		Writer out = rowsResponse(r.exchange);
+		ResultPrinter printer = new ResultPrinter(out, ResultPrinter.Format.JSONL, true);
+		this._esql.streamQuery(query, printer, params);
+		printer.finish();
+	}
+
+	/**
+	 * @return the body of a JSON lines response. The status line is only
+	 * sent with the first bytes, so a query that fails before its first row
+	 * is still answered with an error code.
+	 */
+	private static Writer rowsResponse(final HttpExchange exchange){
+		return new Writer(){
+			private Writer _out = null;
+
+			private Writer out() throws IOException {
+				if (this._out == null){
+					exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+					exchange.sendResponseHeaders(200, 0);
+					this._out = ResultPrinter.writer(exchange.getResponseBody());
+				}//end if
+				return this._out;
+			}
+
+			public void write(char[] buffer, int offset, int length) throws IOException { out().write(buffer, offset, length); }
+			public void write(String value, int offset, int length) throws IOException { out().write(value, offset, length); }
+			public void write(int c) throws IOException { out().write(c); }
+			public void flush() throws IOException { out().flush(); }
+			public void close() throws IOException { out().close(); }
+		};
+	}
+
+	private static String status(String status) throws BadRequest {
+		if (!status.equals("AV") && !status.equals("AC") && !status.equals("PA") && !status.equals("WL"))
+			throw new BadRequest("status must be one of AV, AC, PA, WL");
+		return status;
+	}
+
+	private static void error(HttpExchange exchange, int code, String message){
+		try{
+			send(exchange, code, "{\"error\":\"" + ResultPrinter.jsonEscape(message) + "\"}\n");
+		}catch (IOException e){
+			// the client is gone, or the response was already started.
+		}//end try
+	}
+
+	private static void send(HttpExchange exchange, int code, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * @return the parameters of the query string and of a form encoded body
+	 */
+	static Map<String, String> params(HttpExchange exchange) throws IOException, BadRequest {
+		Map<String, String> params = new HashMap<String, String>();
+		parse(exchange.getRequestURI().getRawQuery(), params);
+		String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (type != null && type.startsWith("application/x-www-form-urlencoded")){
+			InputStream in = exchange.getRequestBody();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0){
+				body.write(buffer, 0, n);
+				if (body.size() > MAX_BODY) throw new BadRequest("request body larger than " + MAX_BODY + " bytes");
+			}//end while
+			parse(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+		}//end if
+		return params;
+	}
+
+	private static void parse(String query, Map<String, String> params) throws BadRequest {
+		if (query == null || query.isEmpty()) return;
+		try{
+			for (String pair : query.split("&")){
+				if (pair.isEmpty()) continue;
+				int eq = pair.indexOf('=');
+				String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+				String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				params.put(name, value);
+			}//end for
+		}catch (UnsupportedEncodingException | IllegalArgumentException e){
+			throw new BadRequest("malformed parameters: " + e.getMessage());
+		}//end try
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + ApiServer.class.getName()
+				+ " <dbname> <port> <user> [http port]");
+			return;
+		}//end if
+		int httpPort = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_HTTP_PORT;
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		final ApiServer server = new ApiServer(esql, httpPort, THREADS, MAX_IN_FLIGHT);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.stop(1);
+				esql.cleanup();
+			}
+		});
+		server.start();
+		System.out.println("Serving on port " + httpPort + " (" + THREADS + " threads, " + MAX_IN_FLIGHT + " database requests at once)");
+	}
+}
@@ -0,0 +1,353 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps the available (AV) appointments that have a doctor in
+ * memory, by day and doctor, so option 6 can list the available slots of
+ * a department without a query. A department is resolved to its doctors
+ * through the request_maintenance rows of ReferenceCache, so a change of
+ * department does not touch the index.
+ *
+ * The index is loaded by a listener thread, which then follows the
+ * availability_changed notifications of sql/migrations/003 and reloads
+ * each changed appointment. Bookings made through this process also drop
+ * the appointment right away. Until the first load is done, and after
+ * the listener lost its connection, isReady() is false and callers use
+ * the database.
+ *
+ */
+
+public class AvailabilityIndex{
+	public static final String CHANNEL = "availability_changed";
+
+	//the columns of the option 6 query before the request_maintenance ones
+	private static final String[] NAMES = { "appnt_id", "adate", "time_slot", "status", "appt_id", "doctor_id" };
+	private static final int[] KINDS = { Row.LONG, Row.DATE, Row.TEXT, Row.TEXT, Row.LONG, Row.LONG };
+
+	private static final String LOAD_ALL =
+		"SELECT A.appnt_ID, A.adate, A.time_slot, H.doctor_id FROM Appointment A, has_appointment H WHERE A.appnt_ID = H.appt_id AND A.status = 'AV';";
+	private static final String LOAD_ONE =
+		"SELECT A.adate, A.time_slot, H.doctor_id FROM Appointment A, has_appointment H WHERE A.appnt_ID = H.appt_id AND A.status = 'AV' AND A.appnt_ID = ?;";
+
+	private static final DateTimeFormatter US_DATE = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+	/**
+	 * The available appointments of one doctor on one day, ids ascending,
+	 * with the index of the time slot of each. Never changed once built.
+	 */
+	private static final class Slots{
+		final int[] ids;
+		final short[] slots;
+
+		Slots(int[] ids, short[] slots){
+			this.ids = ids;
+			this.slots = slots;
+		}
+	}
+
+	/**
+	 * The whole index, replaced as one on a reload.
+	 */
+	private static final class State{
+		//(epoch day << 32 | doctor) to the doctor's appointments that day
+		final ConcurrentHashMap<Long, Slots> byDay = new ConcurrentHashMap<Long, Slots>();
+		//appointment to the keys of byDay it is under
+		final HashMap<Integer, long[]> keys = new HashMap<Integer, long[]>();
+	}
+
+	private final ConnectionPool _pool;
+	private volatile State _state = new State();
+	private volatile boolean _ready = false;
+
+	//time slot strings, interned to a short, only ever appended to
+	private final List<String> _slotNames = new ArrayList<String>();
+	private final Map<String, Short> _slotIds = new HashMap<String, Short>();
+	private volatile String[] _slotTable = new String[0];
+
+	private final AtomicLong _lookups = new AtomicLong();
+	private final AtomicLong _updates = new AtomicLong();
+	private final AtomicLong _reloads = new AtomicLong();
+
+	private volatile boolean _closed = false;
+	private Thread _listener = null;
+
+	public AvailabilityIndex(ConnectionPool pool){
+		this._pool = pool;
+	}
+
+	private static long key(long day, int doctor){
+		return (day << 32) | (doctor & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param date a date as option 6 takes it, MM/DD/YYYY or YYYY-MM-DD
+	 * @return its epoch day, or Long.MIN_VALUE when it is neither
+	 */
+	public static long parseDay(String date){
+		String d = date.trim();
+		try{
+			return (d.indexOf('/') >= 0 ? LocalDate.parse(d, US_DATE) : LocalDate.parse(d)).toEpochDay();
+		}catch (DateTimeParseException e){
+			return Long.MIN_VALUE;
+		}//end try
+	}
+
+	/**
+	 * @return whether the index is loaded and followed, so lookups are current
+	 */
+	public boolean isReady(){
+		return this._ready;
+	}
+
+	/**
+	 * Method to hand the available appointments of some doctors on one day
+	 * to a visitor, as the rows of Appointment joined with has_appointment.
+	 *
+	 * @param doctors the doctor ids, each once
+	 * @param day the epoch day
+	 * @param out called once per appointment and doctor
+	 * @return the number of rows passed to out
+	 */
+	public int list(int[] doctors, long day, RowVisitor out) throws SQLException {
+		this._lookups.incrementAndGet();
+		State state = this._state;
+		String[] slotTable = this._slotTable;
+		Row row = null;
+		int count = 0;
+		for (int doctor : doctors){
+			Slots slots = state.byDay.get(key(day, doctor));
+			if (slots == null) continue;
+			if (row == null){
+				row = new Row(NAMES, KINDS);
+				row.setLong(2, day);
+				row.setString(4, "AV");
+			}//end if
+			row.setLong(6, doctor);
+			for (int i = 0; i < slots.ids.length; ++i){
+				row.setLong(1, slots.ids[i]);
+				row.setString(3, slots.slots[i] < 0 ? null : slotTable[slots.slots[i]]);
+				row.setLong(5, slots.ids[i]);
+				++count;
+				if (!out.visit(row)) return count;
+			}//end for
+		}//end for
+		return count;
+	}
+
+	/**
+	 * Method to drop an appointment that is no longer available, e.g. just
+	 * booked by this process.
+	 */
+	public synchronized void remove(int apptId){
+		remove(this._state, apptId);
+		this._updates.incrementAndGet();
+	}
+
+	private short slot(String timeSlot){
+		if (timeSlot == null) return -1;
+		synchronized (this._slotIds){
+			Short id = this._slotIds.get(timeSlot);
+			if (id == null){
+				if (this._slotNames.size() == Short.MAX_VALUE) throw new IllegalStateException("too many distinct time slots");
+				id = (short) this._slotNames.size();
+				this._slotNames.add(timeSlot);
+				this._slotIds.put(timeSlot, id);
+				this._slotTable = this._slotNames.toArray(new String[0]);
+			}//end if
+			return id;
+		}
+	}
+
+	private static void add(State state, int apptId, long day, short slot, int doctor){
+		long key = key(day, doctor);
+		long[] keys = state.keys.get(apptId);
+		if (keys != null){
+			for (long k : keys) if (k == key) return;
+			keys = Arrays.copyOf(keys, keys.length + 1);
+		}else{
+			keys = new long[1];
+		}//end if
+		keys[keys.length - 1] = key;
+		state.keys.put(apptId, keys);
+
+		Slots old = state.byDay.get(key);
+		int n = old == null ? 0 : old.ids.length;
+		int at = old == null ? -1 : Arrays.binarySearch(old.ids, apptId);
+		at = -at - 1;
+		int[] ids = new int[n + 1];
+		short[] slots = new short[n + 1];
+		if (old != null){
+			System.arraycopy(old.ids, 0, ids, 0, at);
+			System.arraycopy(old.slots, 0, slots, 0, at);
+			System.arraycopy(old.ids, at, ids, at + 1, n - at);
+			System.arraycopy(old.slots, at, slots, at + 1, n - at);
+		}//end if
+		ids[at] = apptId;
+		slots[at] = slot;
+		state.byDay.put(key, new Slots(ids, slots));
+	}
+
+	private static void remove(State state, int apptId){
+		long[] keys = state.keys.remove(apptId);
+		if (keys == null) return;
+		for (long key : keys){
+			Slots old = state.byDay.get(key);
+			if (old == null) continue;
+			int at = Arrays.binarySearch(old.ids, apptId);
+			if (at < 0) continue;
+			int n = old.ids.length;
+			if (n == 1){
+				state.byDay.remove(key);
+				continue;
+			}//end if
+			int[] ids = new int[n - 1];
+			short[] slots = new short[n - 1];
+			System.arraycopy(old.ids, 0, ids, 0, at);
+			System.arraycopy(old.slots, 0, slots, 0, at);
+			System.arraycopy(old.ids, at + 1, ids, at, n - at - 1);
+			System.arraycopy(old.slots, at + 1, slots, at, n - at - 1);
+			state.byDay.put(key, new Slots(ids, slots));
+		}//end for
+	}
+
+	/**
+	 * Method to load the whole index from the database and swap it in.
+	 */
+	void reload() throws SQLException {
+		State fresh = new State();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			pc.connection().setAutoCommit(false);
+			PreparedStatement stmt = DBproject.prepare(pc, LOAD_ALL, new Object[0]);
+			stmt.setFetchSize(DBproject.FETCH_SIZE);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				//the appointments are many, their slots few: build the slot table as they come
+				add(fresh, rs.getInt(1), rs.getDate(2).toLocalDate().toEpochDay(), slot(rs.getString(3)), rs.getInt(4));
+			}//end while
+			rs.close();
+			pc.connection().commit();
+		}finally{
+			this._pool.release(pc);
+		}
+		synchronized (this){
+			this._state = fresh;
+		}
+		this._reloads.incrementAndGet();
+	}
+
+	/**
+	 * Method to reload one appointment after a change notification.
+	 */
+	void refresh(int apptId) throws SQLException {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, LOAD_ONE, new Object[] { apptId });
+			while (rs.next())
+				rows.add(new Object[] { rs.getDate(1).toLocalDate().toEpochDay(), rs.getString(2), rs.getInt(3) });
+			rs.close();
+		}finally{
+			this._pool.release(pc);
+		}
+		synchronized (this){
+			State state = this._state;
+			remove(state, apptId);
+			for (Object[] r : rows)
+				add(state, apptId, (Long) r[0], slot((String) r[1]), (Integer) r[2]);
+		}
+		this._updates.incrementAndGet();
+	}
+
+	/**
+	 * Method to start the thread that loads the index and follows the
+	 * changes. When its connection breaks the index is not used until it
+	 * reconnected and loaded again, since changes may have been missed.
+	 */
+	public synchronized void startListener(){
+		if (this._listener != null) return;
+		this._listener = new Thread(new Runnable(){
+			public void run(){ listen(); }
+		}, "availability-index-listener");
+		this._listener.setDaemon(true);
+		this._listener.start();
+	}
+
+	private void listen(){
+		while (!this._closed){
+			Connection conn = null;
+			try{
+				conn = this._pool.openDedicated();
+				Statement stmt = conn.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				stmt.close();
+				//changes from here on are notified, load what was there before
+				reload();
+				this._ready = true;
+				PGConnection pgconn = conn.unwrap(PGConnection.class);
+				while (!this._closed){
+					PGNotification[] notifications = pgconn.getNotifications(1000);
+					if (notifications == null) continue;
+					for (PGNotification n : notifications){
+						String payload = n.getParameter();
+						if (payload.equals("*")) reload();
+						else refresh(Integer.parseInt(payload));
+					}//end for
+				}//end while
+			}catch (SQLException | RuntimeException e){
+				this._ready = false;
+				if (this._closed) break;
+				System.err.println("Availability index listener: " + e.getMessage());
+				try{
+					Thread.sleep(5000);
+				}catch (InterruptedException ie){
+					break;
+				}//end try
+			}finally{
+				if (conn != null){
+					try{
+						conn.close();
+					}catch (SQLException e){
+						// ignored.
+					}//end try
+				}//end if
+			}
+		}//end while
+		this._ready = false;
+	}
+
+	public String stats(){
+		State state = this._state;
+		int appointments;
+		synchronized (this){
+			appointments = state.keys.size();
+		}
+		return String.format("availability index: %d appointments in %d doctor days, %d lookups, %d updates, %d reloads%s",
+			appointments, state.byDay.size(), this._lookups.get(), this._updates.get(), this._reloads.get(), this._ready ? "" : " (not ready)");
+	}
+
+	public void close(){
+		this._closed = true;
+		Thread listener;
+		synchronized (this){
+			listener = this._listener;
+		}
+		if (listener != null) listener.interrupt();
+	}
+}
@@ -0,0 +1,227 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class inserts many records into one table with JDBC batches, for
+ * onboarding a whole clinic at once instead of going through AddDoctor,
+ * AddPatient and AddAppointment one record at a time. Records are sent
+ * with addBatch/executeBatch (the pool connects with reWriteBatchedInserts,
+ * so the driver folds a batch into multi-row INSERTs) and committed every
+ * chunk, a failed chunk is rolled back on its own. The file is read one
+ * chunk at a time, so its size does not matter.
+ *
+ * As with AddDoctor, AddPatient and AddAppointment, a Doctor, Patient or
+ * Appointment record with an empty id gets the next id of IdAllocator.
+ * Taken (AC, WL) appointments are rejected: they take a doctor's time, and
+ * only option 3 checks it against the doctor's schedule.
+ *
+ */
+
+public class BatchInserter{
+	public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("dbproject.batch.chunkSize", 1000);
+
+	/**
+	 * Totals of one batch insert.
+	 */
+	public static class Stats{
+		public long inserted = 0;
+		public long rejected = 0;
+		public long failed = 0;
+		public int batches = 0;
+		public long nanos = 0;
+
+		public String toString(){
+			double seconds = this.nanos / 1e9;
+			return String.format("%d inserted, %d rejected, %d in failed batches, %d batches in %.2f s (%.0f rows/s)",
+				this.inserted, this.rejected, this.failed, this.batches, seconds, this.inserted / Math.max(seconds, 1e-9));
+		}
+	}
+
+	private final ConnectionPool _pool;
+	//null when every record must carry its id
+	private final IdAllocator _ids;
+	private final BulkLoader.Table _table;
+	//the id sequence of the first column, or null
+	private final String _sequence;
+	private final int _chunkSize;
+	private final String _sql;
+	private final PrintStream _log;
+
+	public BatchInserter(ConnectionPool pool, IdAllocator ids, BulkLoader.Table table, int chunkSize, PrintStream log){
+		this._pool = pool;
+		this._ids = ids;
+		this._table = table;
+		this._sequence = sequence(table);
+		this._chunkSize = Math.max(1, chunkSize);
+		this._log = log;
+
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.name).append(" (")
+			.append(String.join(", ", table.columns)).append(") VALUES (");
+		for (int i = 0; i < table.columns.length; ++i){
+			if (i > 0) sql.append(", ");
+			sql.append(table.checks[i] == BulkLoader.DATE ? "CAST(? AS DATE)" : "?");
+		}//end for
+		this._sql = sql.append(");").toString();
+	}
+
+	/**
+	 * @return the sequence the ids of the table come from, or null when it has none
+	 */
+	static String sequence(BulkLoader.Table table){
+		switch (table.name){
+			case "Doctor": return IdAllocator.DOCTOR;
+			case "Patient": return IdAllocator.PATIENT;
+			case "Appointment": return IdAllocator.APPOINTMENT;
+			default: return null;
+		}
+	}
+
+	/**
+	 * @param name a table name, matched ignoring case
+	 * @return the table of that name, or null
+	 */
+	public static BulkLoader.Table table(String name){
+		for (BulkLoader.Table[] level : BulkLoader.LEVELS)
+			for (BulkLoader.Table table : level)
+				if (table.name.equalsIgnoreCase(name)) return table;
+		return null;
+	}
+
+	/**
+	 * Method to insert the records of a csv file laid out like the matching
+	 * data/*.csv file, one chunk at a time. Lines that fail the BulkLoader
+	 * checks are skipped and reported.
+	 *
+	 * @param file the csv file
+	 * @return the totals of the insert
+	 */
+	public Stats insertFile(File file) throws IOException, SQLException {
+		long start = System.nanoTime();
+		Stats stats = new Stats();
+		List<Object[]> chunk = new ArrayList<Object[]>(this._chunkSize);
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))){
+			pc.connection().setAutoCommit(false);
+			String line;
+			long lineNo = 0;
+			while ((line = reader.readLine()) != null){
+				++lineNo;
+				if (line.isEmpty()) continue;
+				String[] fields = line.split(",", -1);
+				boolean allocate = this._sequence != null && this._ids != null && fields[0].trim().isEmpty();
+				//the id is only allocated once the rest of the line is known to be fine
+				String reason = BulkLoader.check(this._table, allocate ? "0" + line : line);
+				if (reason == null && this._table.name.equals("Appointment") && fields.length > 3 && (fields[3].equals("AC") || fields[3].equals("WL")))
+					reason = "status: taken appointments must be added through option 3, which checks the doctor's schedule";
+				if (reason != null){
+					this._log.println(file.getName() + ":" + lineNo + ": " + reason);
+					stats.rejected++;
+					continue;
+				}//end if
+				if (allocate) fields[0] = String.valueOf(this._ids.nextInt(this._sequence));
+				chunk.add(toRecord(fields));
+				if (chunk.size() == this._chunkSize){
+					insertChunk(pc, chunk, stats);
+					chunk.clear();
+				}//end if
+			}//end while
+			if (!chunk.isEmpty()) insertChunk(pc, chunk, stats);
+		}finally{
+			this._pool.release(pc);
+		}
+		stats.nanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	/**
+	 * Method to turn the text fields of a record into the values bound to
+	 * the INSERT, integers for INT columns and strings otherwise.
+	 */
+	public Object[] toRecord(String[] fields){
+		Object[] record = new Object[fields.length];
+		for (int i = 0; i < fields.length; ++i)
+			record[i] = this._table.checks[i] == BulkLoader.INT ? (Object) Integer.valueOf(fields[i].trim()) : fields[i];
+		return record;
+	}
+
+	/**
+	 * Method to insert records that already passed the checks, in chunks.
+	 */
+	public Stats insert(List<Object[]> records) throws SQLException {
+		long start = System.nanoTime();
+		Stats stats = new Stats();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			pc.connection().setAutoCommit(false);
+			for (int from = 0; from < records.size(); from += this._chunkSize)
+				insertChunk(pc, records.subList(from, Math.min(records.size(), from + this._chunkSize)), stats);
+		}finally{
+			this._pool.release(pc);
+		}
+		stats.nanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	//sends one chunk as a batch and commits it, or rolls it back on its own
+	private void insertChunk(ConnectionPool.PooledConnection pc, List<Object[]> chunk, Stats stats) throws SQLException {
+		Connection conn = pc.connection();
+		PreparedStatement stmt = pc.statements().prepare(this._sql);
+		long batchStart = System.nanoTime();
+		try{
+			for (Object[] record : chunk){
+				for (int i = 0; i < record.length; ++i)
+					stmt.setObject(i + 1, record[i]);
+				stmt.addBatch();
+			}//end for
+			stmt.executeBatch();
+			conn.commit();
+			stats.inserted += chunk.size();
+		}catch (SQLException e){
+			stmt.clearBatch();
+			conn.rollback();
+			stats.failed += chunk.size();
+			SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+			this._log.println("batch " + (stats.batches + 1) + " rolled back: " + cause.getMessage());
+		}//end try
+		stats.batches++;
+		double ms = (System.nanoTime() - batchStart) / 1e6;
+		this._log.println(String.format("batch %d: %d rows in %.1f ms (%.0f rows/s)",
+			stats.batches, chunk.size(), ms, chunk.size() / Math.max(ms / 1000.0, 1e-9)));
+	}//end insertChunk
+
+	/**
+	 * Command line mode used by DBproject: --batch <table> <file> [chunk size]
+	 */
+	static void run(DBproject esql, String[] args) throws IOException, SQLException {
+		BulkLoader.Table table = args.length > 1 ? table(args[1]) : null;
+		if (table == null || args.length < 3){
+			System.err.println("Usage: ... --batch <Doctor|Patient|Appointment|...> <csv file> [chunk size]");
+			System.err.println("Tables: " + Arrays.toString(names()));
+			return;
+		}//end if
+		int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CHUNK_SIZE;
+		Stats stats = new BatchInserter(esql.getPool(), esql.getIdAllocator(), table, chunkSize, System.out).insertFile(new File(args[2]));
+		//records may carry their own ids, keep the sequences ahead of them
+		IdAllocator.sync(esql.getPool());
+		System.out.println(table.name + ": " + stats);
+	}
+
+	private static String[] names(){
+		List<String> names = new ArrayList<String>();
+		for (BulkLoader.Table[] level : BulkLoader.LEVELS)
+			for (BulkLoader.Table table : level)
+				names.add(table.name);
+		return names.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,363 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class books appointments. Each booking runs in one transaction that
+ * locks the appointment row, moves its status along AV -> AC -> WL and
+ * counts the appointment for the patient, so two concurrent bookers can
+ * never both get the same available slot. As option 4 always did, only an
+ * appointment of the given doctor that the patient searched can be booked. With a
+ * ScheduleEngine, an appointment only becomes active when every doctor
+ * linked to it has room for it at every minute of its time slot: first
+ * in the in-memory calendar, then against the committed appointments
+ * under an advisory lock per doctor and day (ScheduleEngine.confirm), so
+ * clerks in separate processes can not overbook a doctor either.
+ *
+ */
+
+public class BookingEngine{
+	public static final int DEFAULT_MAX_RETRIES = Integer.getInteger("dbproject.booking.maxRetries", 5);
+
+	/**
+	 * What a booking did to the appointment.
+	 */
+	public enum Outcome{
+		ACTIVE,		//the appointment was available and is now active for the patient
+		WAITLISTED,	//the appointment was taken, the patient is on its waitlist
+		PAST,		//the appointment is in the past, nothing changed
+		NOT_FOUND,	//no such appointment or patient, nothing changed
+		CONFLICT	//the doctor is full during the appointment's time slot, nothing changed
+	}
+
+	//SQL states postgres uses for transactions that may succeed when retried
+	private static final String SERIALIZATION_FAILURE = "40001";
+	private static final String DEADLOCK_DETECTED = "40P01";
+
+	//Appointment is partitioned by adate, the locks return it so SET_STATUS only looks in one partition
+	private static final String LOCK_APPOINTMENT =
+		"SELECT A.status, A.adate, A.time_slot FROM Appointment A JOIN has_appointment H ON H.appt_id = A.appnt_ID "
+		+ "WHERE A.appnt_ID = ? AND H.doctor_id = ? AND EXISTS (SELECT 1 FROM searches S WHERE S.pid = ? AND S.aid = A.appnt_ID) FOR UPDATE OF A;";
+	//skips the appointments that were found to conflict with the doctor's schedule
+	private static final String LOCK_FIRST_AVAILABLE =
+		"SELECT A.appnt_ID, A.adate, A.time_slot FROM Appointment A, has_appointment H WHERE H.doctor_id = ? AND A.appnt_ID = H.appt_id AND A.status = 'AV' AND A.appnt_ID <> ALL(CAST(? AS int[])) ORDER BY A.adate, A.appnt_ID LIMIT 1 FOR UPDATE OF A SKIP LOCKED;";
+	//every doctor of the appointment, not only the one booked through, is taken by it
+	private static final String LOCK_DOCTORS =
+		"SELECT doctor_id FROM has_appointment WHERE appt_id = ? ORDER BY doctor_id FOR SHARE;";
+	private static final String SET_STATUS =
+		"UPDATE Appointment SET status = ? WHERE appnt_ID = ? AND adate = ?;";
+	private static final String COUNT_PATIENT_APPOINTMENT =
+		"UPDATE Patient SET number_of_appts = (number_of_appts + 1) WHERE patient_ID = ?;";
+	private static final String LINK_DOCTOR =
+		"INSERT INTO has_appointment (appt_id, doctor_id) VALUES (?, ?) ON CONFLICT DO NOTHING;";
+
+	//the statements of a booking and of add, prepared ahead by a fast start
+	static final String[] STATEMENTS = { LOCK_APPOINTMENT, LOCK_FIRST_AVAILABLE, LOCK_DOCTORS, SET_STATUS, COUNT_PATIENT_APPOINTMENT, LINK_DOCTOR };
+
+	private final ConnectionPool _pool;
+	private final int _maxRetries;
+	//told about appointments that stop being available, may be null
+	private volatile AvailabilityIndex _availability = null;
+	//checks that active appointments fit the doctor's schedule, may be null
+	private volatile ScheduleEngine _schedule = null;
+	//the available appointments of a doctor bookFirstAvailable tries before it gives up
+	private static final int MAX_CANDIDATES = 16;
+
+	//counters
+	private long _bookings = 0;
+	private long _retries = 0;
+
+	public BookingEngine(ConnectionPool pool){
+		this(pool, DEFAULT_MAX_RETRIES);
+	}
+
+	public BookingEngine(ConnectionPool pool, int maxRetries){
+		this._pool = pool;
+		this._maxRetries = maxRetries;
+	}
+
+	public void setAvailabilityIndex(AvailabilityIndex availability){
+		this._availability = availability;
+	}
+
+	public void setScheduleEngine(ScheduleEngine schedule){
+		this._schedule = schedule;
+	}
+
+	/**
+	 * Method to count an appointment that is about to be taken in the
+	 * schedules of its doctors.
+	 *
+	 * @return false when one of the doctors is full during its time slot.
+	 *         Slots that do not parse, and any slot while the schedule is not
+	 *         loaded, are let through.
+	 */
+	private boolean reserve(int apptId, int[] doctors, Date adate, String timeSlot){
+		ScheduleEngine schedule = this._schedule;
+		if (schedule == null || !schedule.isReady()) return true;
+		int slot = ScheduleEngine.parseSlot(timeSlot);
+		return slot < 0 || schedule.reserve(apptId, doctors, adate.toLocalDate().toEpochDay(), slot);
+	}
+
+	private void release(int apptId, int[] doctors){
+		ScheduleEngine schedule = this._schedule;
+		if (schedule != null) schedule.release(apptId, doctors);
+	}
+
+	/**
+	 * Method to check a reserved appointment against the committed ones in
+	 * the booking transaction, see ScheduleEngine.confirm.
+	 *
+	 * @return false when one of the doctors is full during its time slot
+	 */
+	private boolean confirm(ConnectionPool.PooledConnection pc, int apptId, int[] doctors, Date adate, String timeSlot) throws SQLException {
+		ScheduleEngine schedule = this._schedule;
+		if (schedule == null) return true;
+		int slot = ScheduleEngine.parseSlot(timeSlot);
+		return slot < 0 || schedule.confirm(pc, apptId, doctors, adate.toLocalDate().toEpochDay(), slot);
+	}
+
+	private void committed(int apptId){
+		ScheduleEngine schedule = this._schedule;
+		if (schedule != null) schedule.commit(apptId);
+	}
+
+	/**
+	 * @return the doctors linked to the appointment, their has_appointment rows locked until the end of the transaction
+	 */
+	private static int[] lockDoctors(ConnectionPool.PooledConnection pc, int apptId) throws SQLException {
+		ResultSet rs = DBproject.executeCached(pc, LOCK_DOCTORS, new Object[] { apptId });
+		int[] doctors = new int[4];
+		int n = 0;
+		while (rs.next()){
+			if (n == doctors.length) doctors = Arrays.copyOf(doctors, n * 2);
+			doctors[n++] = rs.getInt(1);
+		}//end while
+		rs.close();
+		return Arrays.copyOf(doctors, n);
+	}
+
+	//the index also hears of it from the database, this is so this process sees its own bookings at once
+	private void unavailable(int apptId){
+		AvailabilityIndex availability = this._availability;
+		if (availability != null) availability.remove(apptId);
+	}
+
+	/**
+	 * Method to book a given appointment of a doctor for a patient.
+	 * The appointment must be linked to the doctor in has_appointment and
+	 * searched by the patient in searches, else nothing changes.
+	 *
+	 * @param patientId the patient making the appointment
+	 * @param doctorId the doctor of the appointment
+	 * @param apptId the appointment the patient wants
+	 * @return what happened to the appointment, NOT_FOUND when it is not one
+	 *         of the doctor's or not searched by the patient
+	 * @throws java.sql.SQLException when the booking failed after all retries
+	 */
+	public Outcome book(int patientId, int doctorId, int apptId) throws SQLException {
+		for (int attempt = 0; ; ++attempt){
+			ConnectionPool.PooledConnection pc = this._pool.borrow();
+			Connection conn = pc.connection();
+			int[] reserved = null;
+			try{
+				conn.setAutoCommit(false);
+				ResultSet rs = DBproject.executeCached(pc, LOCK_APPOINTMENT, new Object[] { apptId, doctorId, patientId });
+				String status = null;
+				Date adate = null;
+				String timeSlot = null;
+				if (rs.next()){
+					status = rs.getString(1);
+					adate = rs.getDate(2);
+					timeSlot = rs.getString(3);
+				}//end if
+				rs.close();
+				if (status == null || status.equals("PA")){
+					conn.rollback();
+					return status == null ? Outcome.NOT_FOUND : Outcome.PAST;
+				}//end if
+
+				String next = status.equals("AV") ? "AC" : "WL";
+				//an AC or WL appointment is already counted for its doctors
+				if (status.equals("AV")){
+					int[] doctors = lockDoctors(pc, apptId);
+					if (!reserve(apptId, doctors, adate, timeSlot)){
+						conn.rollback();
+						return Outcome.CONFLICT;
+					}//end if
+					reserved = doctors;
+					if (!confirm(pc, apptId, doctors, adate, timeSlot)){
+						conn.rollback();
+						release(apptId, doctors);
+						return Outcome.CONFLICT;
+					}//end if
+				}//end if
+				if (DBproject.prepare(pc, COUNT_PATIENT_APPOINTMENT, new Object[] { patientId }).executeUpdate() == 0){
+					conn.rollback();
+					if (reserved != null) release(apptId, reserved);
+					return Outcome.NOT_FOUND;
+				}//end if
+				if (!next.equals(status))
+					DBproject.prepare(pc, SET_STATUS, new Object[] { next, apptId, adate }).executeUpdate();
+				conn.commit();
+				if (reserved != null) committed(apptId);
+				counted(attempt);
+				if (status.equals("AV")) unavailable(apptId);
+				return next.equals("AC") ? Outcome.ACTIVE : Outcome.WAITLISTED;
+			}catch (SQLException e){
+				rollback(conn);
+				if (reserved != null) release(apptId, reserved);
+				if (attempt >= this._maxRetries || !isRetryable(e)) throw e;
+				backoff(attempt);
+			}finally{
+				this._pool.release(pc);
+			}
+		}//end for
+	}//end book
+
+	/**
+	 * Method to book the earliest available appointment of a doctor. Rows
+	 * locked by other bookers are skipped instead of waited on, so
+	 * concurrent bookers for the same doctor each get a different slot.
+	 * Appointments during which the doctor is full are skipped too, up to
+	 * MAX_CANDIDATES of them.
+	 *
+	 * @param patientId the patient making the appointment
+	 * @param doctorId the doctor the patient wants to see
+	 * @return the id of the appointment now active for the patient, or -1
+	 *         when the doctor has no available appointment
+	 * @throws java.sql.SQLException when the booking failed after all retries
+	 */
+	public int bookFirstAvailable(int patientId, int doctorId) throws SQLException {
+		for (int attempt = 0; ; ++attempt){
+			ConnectionPool.PooledConnection pc = this._pool.borrow();
+			Connection conn = pc.connection();
+			int apptId = -1;
+			int[] doctors = null;
+			try{
+				conn.setAutoCommit(false);
+				Date adate = null;
+				StringBuilder skipped = new StringBuilder();
+				for (int candidate = 0; apptId < 0 && candidate < MAX_CANDIDATES; ++candidate){
+					ResultSet rs = DBproject.executeCached(pc, LOCK_FIRST_AVAILABLE, new Object[] { doctorId, "{" + skipped + "}" });
+					if (!rs.next()){
+						rs.close();
+						break;
+					}//end if
+					int id = rs.getInt(1);
+					adate = rs.getDate(2);
+					String timeSlot = rs.getString(3);
+					rs.close();
+					doctors = lockDoctors(pc, id);
+					if (reserve(id, doctors, adate, timeSlot)){
+						//set first so a failed confirm is released by the catch below
+						apptId = id;
+						if (confirm(pc, id, doctors, adate, timeSlot)) continue;
+						release(id, doctors);
+						apptId = -1;
+					}//end if
+					skipped.append(skipped.length() == 0 ? "" : ",").append(id);
+				}//end for
+				if (apptId < 0 || DBproject.prepare(pc, COUNT_PATIENT_APPOINTMENT, new Object[] { patientId }).executeUpdate() == 0){
+					conn.rollback();
+					if (apptId >= 0) release(apptId, doctors);
+					return -1;
+				}//end if
+				DBproject.prepare(pc, SET_STATUS, new Object[] { "AC", apptId, adate }).executeUpdate();
+				conn.commit();
+				committed(apptId);
+				counted(attempt);
+				unavailable(apptId);
+				return apptId;
+			}catch (SQLException e){
+				rollback(conn);
+				if (apptId >= 0) release(apptId, doctors);
+				if (attempt >= this._maxRetries || !isRetryable(e)) throw e;
+				backoff(attempt);
+			}finally{
+				this._pool.release(pc);
+			}
+		}//end for
+	}//end bookFirstAvailable
+
+	/**
+	 * Method to add an appointment of a doctor, checked against the doctor's
+	 * schedule when it is taken (AC or WL).
+	 *
+	 * @param apptId the id of the new appointment
+	 * @param date its date, MM/DD/YYYY or YYYY-MM-DD
+	 * @param timeSlot its time slot, HH:MM-HH:MM
+	 * @param status AV, AC, PA or WL
+	 * @param doctorId the doctor it is linked to
+	 * @return false, and nothing is added, when it is taken and the doctor
+	 *         is full during its time slot
+	 * @throws java.sql.SQLException when the insert failed after all retries
+	 */
+	public boolean add(int apptId, String date, String timeSlot, String status, int doctorId) throws SQLException {
+		long day = AvailabilityIndex.parseDay(date);
+		int[] doctors = { doctorId };
+		for (int attempt = 0; ; ++attempt){
+			boolean reserved = false;
+			if ((status.equals("AC") || status.equals("WL")) && day != Long.MIN_VALUE){
+				if (!reserve(apptId, doctors, Date.valueOf(LocalDate.ofEpochDay(day)), timeSlot)) return false;
+				reserved = true;
+			}//end if
+			ConnectionPool.PooledConnection pc = this._pool.borrow();
+			Connection conn = pc.connection();
+			try{
+				conn.setAutoCommit(false);
+				if (reserved && !confirm(pc, apptId, doctors, Date.valueOf(LocalDate.ofEpochDay(day)), timeSlot)){
+					conn.rollback();
+					release(apptId, doctors);
+					return false;
+				}//end if
+				DBproject.prepare(pc, DBproject.ADD_APPOINTMENT_SQL, new Object[] { apptId, date, timeSlot, status }).executeUpdate();
+				DBproject.prepare(pc, LINK_DOCTOR, new Object[] { apptId, doctorId }).executeUpdate();
+				conn.commit();
+				if (reserved) committed(apptId);
+				return true;
+			}catch (SQLException e){
+				rollback(conn);
+				if (reserved) release(apptId, doctors);
+				if (attempt >= this._maxRetries || !isRetryable(e)) throw e;
+				backoff(attempt);
+			}finally{
+				this._pool.release(pc);
+			}
+		}//end for
+	}//end add
+
+	private synchronized void counted(int retries){
+		this._bookings++;
+		this._retries += retries;
+	}
+
+	public synchronized long getBookings(){ return this._bookings; }
+	public synchronized long getRetries(){ return this._retries; }
+
+	static boolean isRetryable(SQLException e){
+		String state = e.getSQLState();
+		return SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state);
+	}
+
+	private static void rollback(Connection conn){
+		try{
+			conn.rollback();
+		}catch (SQLException e){
+			// ignored, the pool drops the connection if it is broken.
+		}//end try
+	}
+
+	//randomized exponential backoff so retried transactions do not collide again
+	private static void backoff(int attempt){
+		try{
+			Thread.sleep(ThreadLocalRandom.current().nextLong(1, 2L << Math.min(attempt, 6)));
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+}
@@ -0,0 +1,129 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded stress harness for the booking engine. Many threads book
+ * the same small set of available appointments at once, then the harness
+ * checks that every appointment was made active for at most one patient.
+ *
+ * The run commits its bookings, so point it at a scratch copy of the database.
+ *
+ */
+
+public class BookingStress{
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingStress.class.getName()
+				+ " <dbname> <port> <user> [threads] [bookings per thread]");
+			return;
+		}//end if
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		final int perThread = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = new ConnectionPool(url, args[2], "", 1, Math.min(threads, ConnectionPool.DEFAULT_MAX_SIZE * 4),
+			60000, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, ConnectionPool.DEFAULT_HEALTH_CHECK_MS, ConnectionPool.DEFAULT_VALIDATE_AFTER_MS);
+		final BookingEngine engine = new BookingEngine(pool);
+
+		//the contended set: available appointments, their doctors and a patient that searched each, plus the patients
+		final List<int[]> slots = new ArrayList<int[]>();
+		final List<Integer> patients = new ArrayList<Integer>();
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT A.appnt_ID, H.doctor_id, min(S.pid) FROM Appointment A, has_appointment H, searches S "
+				+ "WHERE A.appnt_ID = H.appt_id AND S.aid = A.appnt_ID AND A.status = 'AV' GROUP BY 1, 2;", new Object[0]);
+			while (rs.next()) slots.add(new int[] { rs.getInt(1), rs.getInt(2), rs.getInt(3) });
+			rs.close();
+			rs = DBproject.executeCached(pc, "SELECT patient_ID FROM Patient;", new Object[0]);
+			while (rs.next()) patients.add(rs.getInt(1));
+			rs.close();
+		}finally{
+			pool.release(pc);
+		}
+		if (slots.isEmpty() || patients.isEmpty()){
+			System.err.println("Nothing to book: need at least one searched AV appointment with a doctor and one patient");
+			pool.close();
+			return;
+		}//end if
+		System.out.println(threads + " bookers, " + perThread + " bookings each, "
+			+ slots.size() + " available appointments, " + patients.size() + " patients");
+
+		//appointment id -> number of bookings that made it active
+		final ConcurrentHashMap<Integer, AtomicInteger> activated = new ConcurrentHashMap<Integer, AtomicInteger>();
+		final AtomicLong waitlisted = new AtomicLong();
+		final AtomicLong other = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; ++t){
+			new Thread(new Runnable(){
+				public void run(){
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					try{
+						start.await();
+						for (int i = 0; i < perThread; ++i){
+							int patient = patients.get(random.nextInt(patients.size()));
+							int[] slot = slots.get(random.nextInt(slots.size()));
+							try{
+								if (random.nextBoolean()){
+									//book only takes an appointment the patient searched
+									BookingEngine.Outcome outcome = engine.book(slot[2], slot[1], slot[0]);
+									if (outcome == BookingEngine.Outcome.ACTIVE) activate(activated, slot[0]);
+									else if (outcome == BookingEngine.Outcome.WAITLISTED) waitlisted.incrementAndGet();
+									else other.incrementAndGet();
+								}else{
+									int apptId = engine.bookFirstAvailable(patient, slot[1]);
+									if (apptId >= 0) activate(activated, apptId);
+									else other.incrementAndGet();
+								}//end if
+							}catch (SQLException e){
+								errors.incrementAndGet();
+							}//end try
+						}//end for
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+					}finally{
+						done.countDown();
+					}
+				}
+			}, "booker-" + t).start();
+		}//end for
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+
+		int doubleBooked = 0;
+		for (AtomicInteger count : activated.values())
+			if (count.get() > 1) doubleBooked++;
+
+		long total = (long) threads * perThread;
+		System.out.println(String.format("%d bookings in %.2f s (%.0f bookings/s), %d retries",
+			total, seconds, total / seconds, engine.getRetries()));
+		System.out.println(String.format("%d activated, %d waitlisted, %d unchanged, %d errors",
+			activated.size(), waitlisted.get(), other.get(), errors.get()));
+		System.out.println("double bookings: " + doubleBooked);
+		System.out.println(pool.stats());
+		pool.close();
+		if (doubleBooked > 0) System.exit(1);
+	}
+
+	private static void activate(ConcurrentHashMap<Integer, AtomicInteger> activated, int apptId){
+		AtomicInteger count = activated.get(apptId);
+		if (count == null){
+			AtomicInteger fresh = new AtomicInteger();
+			count = activated.putIfAbsent(apptId, fresh);
+			if (count == null) count = fresh;
+		}//end if
+		count.incrementAndGet();
+	}
+}
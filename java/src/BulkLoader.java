@@ -0,0 +1,448 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class loads the data/*.csv files into the tables created by
+ * sql/create.sql. Each file is streamed from the client through COPY ...
+ * FROM STDIN, so the database host needs no access to the files. Tables
+ * are loaded in foreign key order, the tables of one level in parallel.
+ * Rows that fail validation are written to a reject file instead of
+ * failing the whole table. So are rows the server refuses, like duplicate
+ * keys, missing foreign key parents or dates that do not exist: each table
+ * is copied in chunks, and a chunk that fails is rolled back to its
+ * savepoint and split in halves down to the rows at fault.
+ *
+ */
+
+public class BulkLoader{
+	//bytes buffered before they are handed to the COPY stream
+	public static final int COPY_BUFFER = 1 << 20;
+	public static final long PROGRESS_MS = Long.getLong("dbproject.load.progressMs", 5000);
+	//rows sent by one COPY, and so held in memory to be split when the server refuses one of them
+	public static final int CHUNK_ROWS = Integer.getInteger("dbproject.load.chunkRows", 50000);
+
+	//column checks, matching the domains and types of sql/create.sql
+	static final int INT = 0;
+	static final int TEXT = 1;
+	static final int DATE = 2;
+	static final int GENDER = 3;
+	static final int STATUS = 4;
+
+	private static final Pattern DATE_PATTERN = Pattern.compile("\\d{1,2}/\\d{1,2}/\\d{4}|\\d{4}-\\d{1,2}-\\d{1,2}");
+
+	/**
+	 * One table, the file it is loaded from and how its columns are checked.
+	 */
+	static class Table{
+		final String name;
+		final String file;
+		final String[] columns;
+		final int[] checks;
+		final int[] maxLengths;
+
+		Table(String name, String file, String[] columns, int[] checks, int[] maxLengths){
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.checks = checks;
+			this.maxLengths = maxLengths;
+		}
+
+		String copySql(){
+			return "COPY " + this.name + " (" + String.join(", ", this.columns) + ") FROM STDIN WITH DELIMITER ','";
+		}
+	}
+
+	/**
+	 * The tables grouped by foreign key level: a table only references
+	 * tables of earlier levels.
+	 */
+	static final Table[][] LEVELS = {
+		{
+			new Table("Patient", "patient.csv",
+				new String[] { "patient_ID", "name", "gtype", "age", "address", "number_of_appts" },
+				new int[] { INT, TEXT, GENDER, INT, TEXT, INT }, new int[] { 0, 128, 1, 0, 256, 0 }),
+			new Table("Hospital", "hospital.csv",
+				new String[] { "hospital_ID", "name" },
+				new int[] { INT, TEXT }, new int[] { 0, 64 }),
+			new Table("Appointment", "appointment.csv",
+				new String[] { "appnt_ID", "adate", "time_slot", "status" },
+				new int[] { INT, DATE, TEXT, STATUS }, new int[] { 0, 0, 11, 2 }),
+		},
+		{
+			new Table("Department", "department.csv",
+				new String[] { "dept_ID", "name", "hid" },
+				new int[] { INT, TEXT, INT }, new int[] { 0, 32, 0 }),
+			new Table("Staff", "staff.csv",
+				new String[] { "staff_ID", "name", "hid" },
+				new int[] { INT, TEXT, INT }, new int[] { 0, 128, 0 }),
+		},
+		{
+			new Table("Doctor", "doctor.csv",
+				new String[] { "doctor_ID", "name", "specialty", "did" },
+				new int[] { INT, TEXT, TEXT, INT }, new int[] { 0, 128, 24, 0 }),
+		},
+		{
+			new Table("request_maintenance", "request_maintenance.csv",
+				new String[] { "patient_per_hour", "dept_name", "time_slot", "did", "sid" },
+				new int[] { INT, TEXT, TEXT, INT, INT }, new int[] { 0, 32, 11, 0, 0 }),
+			new Table("searches", "searches.csv",
+				new String[] { "hid", "pid", "aid" },
+				new int[] { INT, INT, INT }, new int[] { 0, 0, 0 }),
+			new Table("schedules", "schedules.csv",
+				new String[] { "appt_id", "staff_id" },
+				new int[] { INT, INT }, new int[] { 0, 0 }),
+			new Table("has_appointment", "has_appointment.csv",
+				new String[] { "appt_id", "doctor_id" },
+				new int[] { INT, INT }, new int[] { 0, 0 }),
+		},
+	};
+
+	/**
+	 * What loading one table did.
+	 */
+	static class Result{
+		final Table table;
+		long loaded = 0;
+		long rejected = 0;
+		long nanos = 0;
+		String error = null;
+
+		Result(Table table){
+			this.table = table;
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final File _dataDir;
+	private final Writer _rejects;
+
+	public BulkLoader(ConnectionPool pool, File dataDir, Writer rejects){
+		this._pool = pool;
+		this._dataDir = dataDir;
+		this._rejects = rejects;
+	}
+
+	/**
+	 * Method to load every table, level by level.
+	 *
+	 * @param threads the number of tables of one level loaded at once
+	 * @return the per table results, in load order
+	 */
+	public List<Result> loadAll(int threads) throws Exception {
+		List<Result> results = new ArrayList<Result>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try{
+			for (Table[] level : LEVELS){
+				List<Future<Result>> futures = new ArrayList<Future<Result>>();
+				for (final Table table : level){
+					futures.add(executor.submit(new Callable<Result>(){
+						public Result call(){ return load(table); }
+					}));
+				}//end for
+				boolean failed = false;
+				for (Future<Result> future : futures){
+					Result result = future.get();
+					results.add(result);
+					failed |= result.error != null;
+				}//end for
+				//later levels reference this one, so they would only fail on foreign keys
+				if (failed) break;
+			}//end for
+		}finally{
+			executor.shutdown();
+		}
+		return results;
+	}//end loadAll
+
+	/**
+	 * Method to stream one csv file into its table. The table is loaded in
+	 * one transaction, a chunk of CHUNK_ROWS rows per COPY, so an error that
+	 * is not about a row, like a broken connection, leaves the table empty.
+	 */
+	Result load(Table table){
+		Result result = new Result(table);
+		long start = System.nanoTime();
+		long nextReport = System.currentTimeMillis() + PROGRESS_MS;
+		ConnectionPool.PooledConnection pc = null;
+		File file = new File(this._dataDir, table.file);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), COPY_BUFFER)){
+			pc = this._pool.borrow();
+			deferCounts(pc, true);
+			Connection conn = pc.connection();
+			conn.setAutoCommit(false);
+			//the references to appointment_ids are deferred, they must fail in the COPY of their chunk
+			try (Statement stmt = conn.createStatement()){
+				stmt.execute("SET CONSTRAINTS ALL IMMEDIATE;");
+			}
+			CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+
+			List<String> lines = new ArrayList<String>(CHUNK_ROWS);
+			long[] lineNos = new long[CHUNK_ROWS];
+			long lineNo = 0, read = 0;
+			String line;
+			while ((line = reader.readLine()) != null){
+				++lineNo;
+				if (line.isEmpty()) continue;
+				String reason = check(table, line);
+				if (reason != null){
+					reject(table, lineNo, line, reason);
+					result.rejected++;
+					continue;
+				}//end if
+				lineNos[lines.size()] = lineNo;
+				lines.add(line);
+				if (lines.size() == CHUNK_ROWS){
+					copyChunk(conn, copyManager, table, lines, lineNos, 0, lines.size(), result);
+					lines.clear();
+				}//end if
+
+				if ((++read & 0xFFF) == 0 && System.currentTimeMillis() >= nextReport){
+					double seconds = (System.nanoTime() - start) / 1e9;
+					System.out.println(String.format("  %s: %d rows, %.0f rows/s", table.name, read, read / seconds));
+					nextReport = System.currentTimeMillis() + PROGRESS_MS;
+				}//end if
+			}//end while
+			if (!lines.isEmpty()) copyChunk(conn, copyManager, table, lines, lineNos, 0, lines.size(), result);
+			conn.commit();
+		}catch (SQLException | IOException e){
+			if (pc != null){
+				try{
+					pc.connection().rollback();
+				}catch (SQLException re){
+					// ignored, the connection is dropped by the pool if broken.
+				}//end try
+			}//end if
+			result.error = e.getMessage();
+			result.loaded = 0;
+		}finally{
+			if (pc != null){
+				try{
+					pc.connection().setAutoCommit(true);
+					deferCounts(pc, false);
+				}catch (SQLException e){
+					// ignored, the connection is dropped by the pool if broken.
+				}//end try
+			}//end if
+			this._pool.release(pc);
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}//end load
+
+	/**
+	 * Method to COPY lines [from, to) of a chunk under a savepoint. When the
+	 * server refuses a row the savepoint is rolled back and each half is
+	 * copied on its own, down to single rows, which go to the reject file.
+	 *
+	 * @throws java.sql.SQLException when the error is not about the data of a row
+	 */
+	private void copyChunk(Connection conn, CopyManager copyManager, Table table, List<String> lines, long[] lineNos,
+			int from, int to, Result result) throws SQLException, IOException {
+		Savepoint savepoint = conn.setSavepoint();
+		CopyIn copy = null;
+		try{
+			copy = copyManager.copyIn(table.copySql());
+			StringBuilder sb = new StringBuilder();
+			for (int i = from; i < to; ++i){
+				sb.append(lines.get(i)).append('\n');
+				if (sb.length() >= COPY_BUFFER || i == to - 1){
+					byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+					copy.writeToCopy(bytes, 0, bytes.length);
+					sb.setLength(0);
+				}//end if
+			}//end for
+			copy.endCopy();
+			conn.releaseSavepoint(savepoint);
+			result.loaded += to - from;
+		}catch (SQLException e){
+			if (copy != null && copy.isActive()) copy.cancelCopy();
+			//22: data exception, 23: integrity constraint violation, anything else is not about a row
+			String state = e.getSQLState();
+			if (state == null || !(state.startsWith("22") || state.startsWith("23"))) throw e;
+			conn.rollback(savepoint);
+			if (to - from == 1){
+				reject(table, lineNos[from], lines.get(from), "refused by the server: " + firstLine(e.getMessage()));
+				result.rejected++;
+				return;
+			}//end if
+			int middle = from + (to - from) / 2;
+			copyChunk(conn, copyManager, table, lines, lineNos, from, middle, result);
+			copyChunk(conn, copyManager, table, lines, lineNos, middle, to, result);
+		}//end try
+	}//end copyChunk
+
+	private static String firstLine(String message){
+		if (message == null) return "";
+		int newline = message.indexOf('\n');
+		return newline < 0 ? message : message.substring(0, newline);
+	}
+
+	/**
+	 * Method to turn the doctor_status_count and availability_changed
+	 * triggers of sql/migrations off or back on for one connection. Counting row by row would lock each
+	 * appointment, and tables loaded in parallel could deadlock on them.
+	 */
+	static void deferCounts(ConnectionPool.PooledConnection pc, boolean defer) throws SQLException {
+		DBproject.executeCached(pc, "SELECT set_config('dbproject.defer_counts', ?, false);", new Object[] { defer ? "on" : "off" }).close();
+	}
+
+	/**
+	 * Method to recount the doctor_status_count summary, when there is one,
+	 * after rows were loaded with its triggers deferred, and to have every
+	 * AvailabilityIndex reload.
+	 *
+	 * @param pool where to run the statements
+	 */
+	public static void rebuildCounts(ConnectionPool pool) throws SQLException {
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT to_regclass('doctor_status_count') IS NOT NULL;", new Object[0]);
+			boolean exists = rs.next() && rs.getBoolean(1);
+			rs.close();
+			if (exists) DBproject.executeCached(pc, "SELECT doctor_status_count_rebuild();", new Object[0]).close();
+			DBproject.executeCached(pc, "SELECT pg_notify(?, '*');", new Object[] { AvailabilityIndex.CHANNEL }).close();
+		}finally{
+			pool.release(pc);
+		}
+	}
+
+	/**
+	 * @return the first day of each month of the Appointment rows to load,
+	 * lines without a valid date are left to the load to reject
+	 */
+	Set<LocalDate> appointmentMonths() throws IOException {
+		Set<LocalDate> months = new TreeSet<LocalDate>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(this._dataDir, "appointment.csv")), StandardCharsets.UTF_8), COPY_BUFFER)){
+			String line;
+			while ((line = reader.readLine()) != null){
+				String[] fields = line.split(",", -1);
+				if (fields.length < 2) continue;
+				long day = AvailabilityIndex.parseDay(fields[1]);
+				if (day != Long.MIN_VALUE) months.add(LocalDate.ofEpochDay(day).withDayOfMonth(1));
+			}//end while
+		}
+		return months;
+	}
+
+	/**
+	 * @return why the line can not be loaded, or null when it is fine
+	 */
+	static String check(Table table, String line){
+		String[] fields = line.split(",", -1);
+		if (fields.length != table.columns.length)
+			return "expected " + table.columns.length + " fields, found " + fields.length;
+		for (int i = 0; i < fields.length; ++i){
+			String field = fields[i];
+			if (field.indexOf('\\') >= 0) return table.columns[i] + ": backslash not allowed";
+			switch (table.checks[i]){
+				case INT:
+					try{
+						Integer.parseInt(field.trim());
+					}catch (NumberFormatException e){
+						return table.columns[i] + ": not an integer '" + field + "'";
+					}//end try
+					break;
+				case DATE:
+					if (!DATE_PATTERN.matcher(field.trim()).matches()) return table.columns[i] + ": not a date '" + field + "'";
+					break;
+				case GENDER:
+					if (!field.equals("F") && !field.equals("M")) return table.columns[i] + ": not F or M '" + field + "'";
+					break;
+				case STATUS:
+					if (!field.equals("PA") && !field.equals("AC") && !field.equals("AV") && !field.equals("WL"))
+						return table.columns[i] + ": not a status '" + field + "'";
+					break;
+				default:
+					if (table.maxLengths[i] > 0 && field.length() > table.maxLengths[i])
+						return table.columns[i] + ": longer than " + table.maxLengths[i] + " characters";
+					break;
+			}
+		}//end for
+		return null;
+	}//end check
+
+	private void reject(Table table, long lineNo, String line, String reason) throws IOException {
+		synchronized (this._rejects){
+			this._rejects.write(table.file + ":" + lineNo + ": " + reason + "\t" + line + "\n");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName()
+				+ " <dbname> <port> <user> [data dir] [reject file]");
+			return;
+		}//end if
+		File dataDir = new File(args.length > 3 ? args[3] : "../data");
+		File rejectFile = new File(args.length > 4 ? args[4] : "rejects.txt");
+		int threads = Integer.getInteger("dbproject.load.threads", 4);
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = new ConnectionPool(url, args[2], "", 1, threads, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MS,
+			ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, ConnectionPool.DEFAULT_HEALTH_CHECK_MS, ConnectionPool.DEFAULT_VALIDATE_AFTER_MS);
+		Writer rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFile), StandardCharsets.UTF_8));
+		long rejected = 0;
+		boolean failed = false;
+		try{
+			long start = System.nanoTime();
+			BulkLoader loader = new BulkLoader(pool, dataDir, rejects);
+			//rows of a month without a partition would all go through appointment_default
+			if (PartitionMaintainer.isPartitioned(pool))
+				System.out.println(PartitionMaintainer.createPartitions(pool, loader.appointmentMonths()) + " Appointment partition(s) created");
+			List<BulkLoader.Result> results = loader.loadAll(threads);
+			long total = 0;
+			for (Result result : results){
+				double seconds = result.nanos / 1e9;
+				if (result.error != null){
+					failed = true;
+					System.out.println(String.format("%-20s FAILED: %s", result.table.name, result.error));
+				}else{
+					System.out.println(String.format("%-20s %10d rows %8d rejected %8.2f s %10.0f rows/s",
+						result.table.name, result.loaded, result.rejected, seconds, result.loaded / Math.max(seconds, 1e-9)));
+				}//end if
+				total += result.loaded;
+				rejected += result.rejected;
+			}//end for
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("total: %d rows in %.2f s (%.0f rows/s)", total, seconds, total / seconds));
+			//new ids must start past the ids that were just loaded
+			if (!failed){
+				IdAllocator.sync(pool);
+				rebuildCounts(pool);
+			}//end if
+		}finally{
+			rejects.close();
+			pool.close();
+		}
+		if (rejected > 0) System.out.println(rejected + " rejected row(s) written to " + rejectFile.getPath());
+		if (failed) System.exit(1);
+	}
+}
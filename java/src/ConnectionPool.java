@@ -0,0 +1,471 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded set of physical connections to the database
+ * so that several sessions can run against it at the same time. Idle
+ * connections are handed out most recently used first, and a background
+ * thread closes the ones idle for too long and keeps at least the minimum
+ * number of connections open.
+ *
+ */
+
+public class ConnectionPool{
+	public static final int DEFAULT_MIN_SIZE = Integer.getInteger("dbproject.pool.minSize", 1);
+	public static final int DEFAULT_MAX_SIZE = Integer.getInteger("dbproject.pool.maxSize", 8);
+	public static final long DEFAULT_BORROW_TIMEOUT_MS = Long.getLong("dbproject.pool.borrowTimeoutMs", 5000);
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = Long.getLong("dbproject.pool.idleTimeoutMs", 60000);
+	public static final long DEFAULT_HEALTH_CHECK_MS = Long.getLong("dbproject.pool.healthCheckMs", 30000);
+	//connections idle for less than this are handed out without a round trip to validate them
+	public static final long DEFAULT_VALIDATE_AFTER_MS = Long.getLong("dbproject.pool.validateAfterMs", 500);
+
+	/**
+	 * A physical connection together with its prepared statement cache.
+	 */
+	public static class PooledConnection{
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private long _lastUsed;
+
+		PooledConnection(Connection connection){
+			this._connection = connection;
+			this._statements = new StatementCache(connection);
+			this._lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection connection(){ return this._connection; }
+		public StatementCache statements(){ return this._statements; }
+
+		void close(){
+			this._statements.close();
+			try{
+				this._connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _borrowTimeoutMs;
+	private final long _idleTimeoutMs;
+	private final long _validateAfterMs;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final List<PooledConnection> _all = new ArrayList<PooledConnection>();
+	//connections being opened, counted against the max size
+	private int _pending = 0;
+	//idle connections out of _idle while the health check validates them, at most one
+	private int _checking = 0;
+	private boolean _closed = false;
+	private final ScheduledExecutorService _healthCheck;
+
+	//metrics
+	private long _borrows = 0;
+	private long _waits = 0;
+	private long _waitNanos = 0;
+	private long _maxWaitNanos = 0;
+	private long _timeouts = 0;
+	private long _created = 0;
+	private long _destroyed = 0;
+
+	public ConnectionPool(String url, String user, String passwd) throws SQLException {
+		this(url, user, passwd, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_BORROW_TIMEOUT_MS,
+			DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_HEALTH_CHECK_MS, DEFAULT_VALIDATE_AFTER_MS);
+	}
+
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long borrowTimeoutMs, long idleTimeoutMs, long healthCheckMs, long validateAfterMs) throws SQLException {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._maxSize = Math.max(1, maxSize);
+		this._minSize = Math.max(0, Math.min(minSize, this._maxSize));
+		this._borrowTimeoutMs = borrowTimeoutMs;
+		this._idleTimeoutMs = idleTimeoutMs;
+		this._validateAfterMs = validateAfterMs;
+
+		//opens the minimum number of connections up front so a bad url fails here
+		for (int i = 0; i < this._minSize; ++i){
+			PooledConnection pc = open();
+			this._lock.lock();
+			try{
+				this._all.add(pc);
+				this._idle.push(pc);
+			}finally{
+				this._lock.unlock();
+			}
+		}//end for
+
+		this._healthCheck = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "connection-pool-health-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this._healthCheck.scheduleWithFixedDelay(new Runnable(){
+			public void run(){ healthCheck(); }
+		}, healthCheckMs, healthCheckMs, TimeUnit.MILLISECONDS);
+	}
+
+	private PooledConnection open() throws SQLException {
+		PooledConnection pc = new PooledConnection(DriverManager.getConnection(this._url, this._user, this._passwd));
+		this._lock.lock();
+		try{
+			this._created++;
+		}finally{
+			this._lock.unlock();
+		}
+		return pc;
+	}
+
+	/**
+	 * Method to open a connection that is not part of the pool, for work
+	 * that holds a connection for the life of the program, like LISTEN.
+	 *
+	 * @return a new physical connection, closed by the caller
+	 * @throws java.sql.SQLException when the connection can not be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to open connections ahead of their first use and prepare
+	 * statements on each, so the first calls do not wait for a connection
+	 * to be opened and authenticated, and the server has already looked up
+	 * the tables and columns of the statements. The describe round trip
+	 * plans nothing; the server side prepare still waits for the prepare
+	 * threshold.
+	 *
+	 * @param count the connections to warm, at most the max size
+	 * @param sql the statements to prepare on each
+	 * @return the number of connections warmed
+	 * @throws java.sql.SQLException when a connection can not be opened
+	 */
+	public int prewarm(int count, String... sql) throws SQLException {
+		List<PooledConnection> warmed = new ArrayList<PooledConnection>();
+		try{
+			//borrowed all at once, so each is a different connection
+			for (int i = 0; i < Math.min(count, this._maxSize); ++i)
+				warmed.add(borrow());
+			for (PooledConnection pc : warmed){
+				for (String s : sql)
+					pc._statements.prepare(s).getParameterMetaData();
+			}//end for
+			return warmed.size();
+		}finally{
+			for (PooledConnection pc : warmed) release(pc);
+		}
+	}
+
+	/**
+	 * Method to take a connection out of the pool. Waits up to the borrow
+	 * timeout when every connection is in use and the pool is at its max size.
+	 *
+	 * @return a validated connection, to be given back with release
+	 * @throws java.sql.SQLException when the pool is closed, the timeout
+	 *         expires or a new connection can not be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._borrowTimeoutMs);
+		boolean waited = false;
+		while (true){
+			PooledConnection pc = null;
+			boolean create = false;
+			this._lock.lock();
+			try{
+				while (true){
+					if (this._closed) throw new SQLException("Connection pool is closed");
+					pc = this._idle.poll();
+					if (pc != null) break;
+					if (this._all.size() + this._pending < this._maxSize){
+						this._pending++;
+						create = true;
+						break;
+					}//end if
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0){
+						this._timeouts++;
+						throw new SQLException("Timed out after " + this._borrowTimeoutMs + " ms waiting for a database connection");
+					}//end if
+					waited = true;
+					try{
+						this._available.awaitNanos(remaining);
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection");
+					}//end try
+				}//end while
+			}finally{
+				this._lock.unlock();
+			}
+
+			if (create){
+				try{
+					pc = open();
+				}finally{
+					this._lock.lock();
+					try{
+						this._pending--;
+						if (pc != null) this._all.add(pc);
+						else this._available.signal();
+					}finally{
+						this._lock.unlock();
+					}
+				}
+			}else if (!validate(pc)){
+				destroy(pc);
+				continue;
+			}//end if
+
+			long elapsed = System.nanoTime() - start;
+			this._lock.lock();
+			try{
+				this._borrows++;
+				if (waited){
+					this._waits++;
+					this._waitNanos += elapsed;
+					if (elapsed > this._maxWaitNanos) this._maxWaitNanos = elapsed;
+				}//end if
+			}finally{
+				this._lock.unlock();
+			}
+			return pc;
+		}//end while
+	}//end borrow
+
+	/**
+	 * Method to give a borrowed connection back to the pool. An open
+	 * transaction is rolled back and autocommit is restored.
+	 *
+	 * @param pc the connection returned by borrow
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null) return;
+		try{
+			if (!pc._connection.getAutoCommit()){
+				pc._connection.rollback();
+				pc._connection.setAutoCommit(true);
+			}//end if
+		}catch (SQLException e){
+			destroy(pc);
+			return;
+		}//end try
+		pc._lastUsed = System.currentTimeMillis();
+		this._lock.lock();
+		try{
+			if (this._closed){
+				this._all.remove(pc);
+				pc.close();
+				return;
+			}//end if
+			this._idle.push(pc);
+			this._available.signal();
+		}finally{
+			this._lock.unlock();
+		}
+	}//end release
+
+	private boolean validate(PooledConnection pc){
+		if (System.currentTimeMillis() - pc._lastUsed < this._validateAfterMs) return true;
+		try{
+			return pc._connection.isValid(2);
+		}catch (SQLException e){
+			return false;
+		}//end try
+	}
+
+	private void destroy(PooledConnection pc){
+		this._lock.lock();
+		try{
+			this._all.remove(pc);
+			this._destroyed++;
+			this._available.signal();
+		}finally{
+			this._lock.unlock();
+		}
+		pc.close();
+	}
+
+	/**
+	 * Closes connections idle past the idle timeout (down to the min size),
+	 * drops the ones that fail validation and opens new ones up to the min size.
+	 */
+	private void healthCheck(){
+		List<PooledConnection> check;
+		this._lock.lock();
+		try{
+			if (this._closed) return;
+			//oldest idle connections sit at the tail of the deque
+			check = new ArrayList<PooledConnection>(this._idle.size());
+			Iterator<PooledConnection> it = this._idle.descendingIterator();
+			while (it.hasNext()) check.add(it.next());
+		}finally{
+			this._lock.unlock();
+		}
+
+		//one connection at a time is taken out to be validated, the rest stay available
+		for (PooledConnection pc : check){
+			this._lock.lock();
+			try{
+				if (this._closed) return;
+				//borrowed since the list was taken
+				if (!this._idle.remove(pc)) continue;
+				if (System.currentTimeMillis() - pc._lastUsed > this._idleTimeoutMs && this._all.size() > this._minSize){
+					this._all.remove(pc);
+					this._destroyed++;
+					pc.close();
+					continue;
+				}//end if
+				this._checking++;
+			}finally{
+				this._lock.unlock();
+			}
+			boolean valid;
+			try{
+				valid = pc._connection.isValid(2);
+			}catch (SQLException e){
+				valid = false;
+			}//end try
+			boolean close = !valid;
+			this._lock.lock();
+			try{
+				this._checking--;
+				if (this._closed){
+					//close() already ran and did not see it
+					this._all.remove(pc);
+					close = true;
+				}else if (valid){
+					this._idle.addLast(pc);
+					this._available.signal();
+				}//end if
+			}finally{
+				this._lock.unlock();
+			}
+			if (!valid) destroy(pc);
+			else if (close) pc.close();
+		}//end for
+
+		while (true){
+			this._lock.lock();
+			try{
+				if (this._closed || this._all.size() + this._pending >= this._minSize) return;
+				this._pending++;
+			}finally{
+				this._lock.unlock();
+			}
+			PooledConnection pc = null;
+			try{
+				pc = open();
+			}catch (SQLException e){
+				System.err.println("Connection pool health check: " + e.getMessage());
+			}finally{
+				this._lock.lock();
+				try{
+					this._pending--;
+					if (pc != null){
+						this._all.add(pc);
+						this._idle.addLast(pc);
+						this._available.signal();
+					}//end if
+				}finally{
+					this._lock.unlock();
+				}
+			}
+			if (pc == null) return;
+		}//end while
+	}//end healthCheck
+
+	public int getActive(){
+		this._lock.lock();
+		try{
+			return this._all.size() - this._idle.size() - this._checking;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public int getIdle(){
+		this._lock.lock();
+		try{
+			return this._idle.size();
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public int getMaxSize(){ return this._maxSize; }
+
+	/**
+	 * @return the mean time spent waiting by the borrows that had to wait, in nanoseconds
+	 */
+	public long getMeanWaitNanos(){
+		this._lock.lock();
+		try{
+			return this._waits == 0 ? 0 : this._waitNanos / this._waits;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public String stats(){
+		this._lock.lock();
+		try{
+			long hits = 0, misses = 0, evictions = 0, saved = 0;
+			for (PooledConnection pc : this._all){
+				hits += pc._statements.getHits();
+				misses += pc._statements.getMisses();
+				evictions += pc._statements.getEvictions();
+				saved += pc._statements.getPlanNanosSaved();
+			}//end for
+			return String.format("pool: %d active, %d idle, %d max, %d borrows, %d waited (mean %.3f ms, max %.3f ms), %d timeouts, %d opened, %d closed%n"
+				+ "statements: %d hits, %d misses, %d evictions, ~%.3f ms plan time saved",
+				this._all.size() - this._idle.size() - this._checking, this._idle.size(), this._maxSize, this._borrows, this._waits,
+				this._waits == 0 ? 0.0 : this._waitNanos / (double) this._waits / 1e6, this._maxWaitNanos / 1e6,
+				this._timeouts, this._created, this._destroyed, hits, misses, evictions, saved / 1e6);
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to close every connection. Connections still borrowed are
+	 * closed when they are released.
+	 */
+	public void close(){
+		this._healthCheck.shutdownNow();
+		List<PooledConnection> idle;
+		this._lock.lock();
+		try{
+			this._closed = true;
+			idle = new ArrayList<PooledConnection>(this._idle);
+			this._all.removeAll(idle);
+			this._idle.clear();
+			this._available.signalAll();
+		}finally{
+			this._lock.unlock();
+		}
+		for (PooledConnection pc : idle)
+			pc.close();
+	}//end close
+}
@@ -1,523 +1,896 @@
-/*
- * Template JAVA User Interface
- * =============================
- *
- * Database Management Systems
- * Department of Computer Science &amp; Engineering
- * University of California - Riverside
- *
- * Target DBMS: 'Postgres'
- *
- */
-
-
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.List;
-import java.util.ArrayList;
-
-/**
- * This class defines a simple embedded SQL utility class that is designed to
- * work with PostgreSQL JDBC drivers.
- *
- */
-
-public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-	
-	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
-		try{
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
-			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
-		}catch(Exception e){
-			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
-		}
-	}
-	
-	/**
-	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-	 * 
-	 * @param sql the input SQL string
-	 * @throws java.sql.SQLException when update failed
-	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
-	}//end executeUpdate
-
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
-	}
-	
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
-	 * 
-	 * @param query the input query string
-	 * @return the query result as a list of records
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
-	}//end executeQueryAndReturnResult
-	
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		while(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
-	}
-	
-	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
-	}
-
-	/**
-	 * Method to close the physical connection if it is open.
-	 */
-	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
-	}//end cleanup
-	static int MAX_doc_id = 249;
-	static int MAX_pat_id = 249;
-	static int MAX_apt_id = 549;
-//	static int MAX_dept_id = 124;
-	/**
-	 * The main execution method
-	 * 
-	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
-	 */
-	public static void main (String[] args) {
-		if (args.length != 3) {
-			System.err.println (
-				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
-			return;
-		}//end if
-		
-		DBproject esql = null;
-		
-		try{
-			System.out.println("(1)");
-			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
-
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
-			
-			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			
-			esql = new DBproject (dbname, dbport, user, "");
-			
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add Doctor");
-				System.out.println("2. Add Patient");
-				System.out.println("3. Add Appointment");
-				System.out.println("4. Make an Appointment");
-				System.out.println("5. List appointments of a given doctor and date range");
-				System.out.println("6. List all available appointments of a given department");
-				System.out.println("7. List total number of different types of appointments per doctor in descending order");
-				System.out.println("8. Find total number of patients per doctor with a given status");
-				System.out.println("9. < EXIT");
-				
-				switch (readChoice()){
-					case 1: AddDoctor(esql); break;
-					case 2: AddPatient(esql); break;
-					case 3: AddAppointment(esql); break;
-					case 4: MakeAppointment(esql); break;
-					case 5: ListAppointmentsOfDoctor(esql); break;
-					case 6: ListAvailableAppointmentsOfDepartment(esql); break;
-					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
-					case 8: FindPatientsCountWithStatus(esql); break;
-					case 9: keepon = false; break;
-				}
-			}
-		}catch(Exception e){
-			System.err.println (e.getMessage ());
-		}finally{
-			try{
-				if(esql != null) {
-					System.out.print("Disconnecting from database...");
-					esql.cleanup ();
-					System.out.println("Done\n\nBye !");
-				}//end if				
-			}catch(Exception e){
-				// ignored.
-			}
-		}
-	}
-
-	public static int readChoice() {
-		int input;
-		// returns only if a correct value is given.
-		do {
-			System.out.print("Please make your choice: ");
-			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
-				break;
-			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
-				continue;
-			}//end try
-		}while (true);
-		return input;
-	}//end readChoice
-	public static void AddDoctor(DBproject esql) {//1
-		String input = "";
-		int number;
-		try {
-			String query = "INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES (\'";
-			do {System.out.print("\tEnter new doctor's id: ");
-			    input = in.readLine();
-			    number  = Integer.parseInt(input);
-			} while (number < MAX_doc_id);
-			query += (input + "\', \'");
-			System.out.print("\tEnter new doctor's name: ");
-			input = in.readLine();
-			query += (input + "\', \'");
-			System.out.print("\tEnter new doctor's specialty: ");
-			input = in.readLine();
-			query += (input + "\', \'");
-			System.out.print("\tEnter new doctor's department id: ");
-				input = in.readLine();
-//				number = Integer.parseInt(input);
-//			} while (number < MAX_dept_id);
-			query += (input + "\');");
-
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
-			MAX_doc_id++;
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-// need to test
-	public static void AddPatient(DBproject esql) {//2
-		String input =  "";
-		int number;
-		try {
-			String query = "INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts) VALUES (\'";
-			do{
-				System.out.print("\tEnter new patient's id: ");
-				input = in.readLine();
-				number = Integer.parseInt(input);
-			}while(number < MAX_pat_id);
-			query += (input + "\', \'");
-			System.out.print("\tEnter new patient's name: ");
-			input = in.readLine();
-			query += (input + "\', \'");
-			System.out.print("\tEnter new patient's gender: ");
-			input = in.readLine();
-			query += (input + "\', \'");
-			do{
-				System.out.print("\tEnter new patient's number of appointments: ");
-				input = in.readLine();
-				number = Integer.parseInt(input);
-			}while(number < 0);
-			query += (input + "\');");
-			
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
-			MAX_pat_id++;
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-// need to test
-	public static void AddAppointment(DBproject esql) {//3
-		String input = "";
-		int number;
-		try {
-			String query = "INSERT INTO Appointment (appnt_ID , adate, time_slot, status) VALUES (\'";
-			do{
-				System.out.print("\tEnter new appointment's id: ");
-				input = in.readLine();
-				number = Integer.parseInt(input);
-			}while(number < MAX_apt_id);
-			query += (input + "\', \'");
-			System.out.print("\tEnter new appointment's date (MM/DD/YYYY): ");
-			input = in.readLine();
-			query += (input + "\', \'");
-			System.out.print("\tEnter new appointment's time slot (HH:MM-HH:MM): ");
-			input = in.readLine();
-			query += (input + "\', \'");
-			do{
-				System.out.print("\tEnter new appointment's status (AV, AC, PA, WA): ");
-				input = in.readLine();
-			}while(input != "AV" || input != "AC" || input != "PA" || input != "WA");
-			query += (input + "\');");
-			
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
-			MAX_apt_id++;
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-
-
-	public static void MakeAppointment(DBproject esql) {//4
-		// Given a patient, a doctor and an appointment of the doctor that s/he wants to take, add an appointment to the DB
-		// First, we have to find out the status from appointment table. If the status is available/active, insert/update tuples 
-		// in patient, has_appointment tables, and change the status (available -> active, active -> waitlisted) in appointment 
-		// table. If the status is waitlisted, update/insert tuples in patient and had_appointment tables. For the past status, we have nothing to do.
-		try {
-			System.out.print("\tEnter patient ID of patient who wants to make an appointment: " );
-                        String pat_id = in.readLine();
-                        System.out.print("\tEnter doctor ID of doctor patient wants to make an appointment with: ");
-                        String doc_id = in.readLine();
-                        System.out.print("\tEnter appointment ID of appointment the patient wants: ");
-                        String appt_id = in.readLine();
-                        String query = "SELECT A.status FROM Appointment A, has_appointment H, Doctor D, searches S, Patient P WHERE P.patient_ID = " + pat_id + " AND D.doctor_ID = " + doc_id + " AND A.appnt_ID = " + appt_id + " ANDP.patient_ID = S.pid AND S.aid = A.appnt_ID AND A.appnt_ID = H.appt_id AND H.doctor_id = D.doctor_ID AND appnt_ID = \'" + appt_id + "\' AND A.status = \'WL\';";
-                        int status = esql.executeQueryAndPrintResult(query);
-			String query2 = "";
-                        if (status != 0) {
-                                // appt wl and update patient, has_appt
-				query2 = "UPDATE Patient SET number_of_appts = (number_of_appts + 1)";
-				status = esql.executeQueryAndPrintResult(query);
-				query2 = "INSERT INTO has_appt(appt_id, doctor_id) VALUES (\'" + appt_id + "\', \'" + doc_id + "\';)"; 
-				status = esql.executeQueryAndPrintResult(query);
-				System.out.println("total row(s): " + status);
-				System.out.print("Updated to waitlist\n");
-			}
-                        query = "SELECT A.status FROM Appointment A, has_appointment H, Doctor D, searches S, Patient P WHERE P.patient_ID = " + pat_id + " AND D.doctor_ID = " + doc_id + " AND A.appnt_ID = " + appt_id + " ANDP.patient_ID = S.pid AND S.aid = A.appnt_ID AND A.appnt_ID = H.appt_id AND H.doctor_id = D.doctor_ID AND appnt_ID = \'" + appt_id + "\' AND A.status = \'AC\';";
-                        status = esql.executeQueryAndPrintResult(query);
-                        if (status != 0) {
-                                // appt ac and update patient, has_appt, appt (status ac -> wl)
-				query2 = "UPDATE Appointment SET status = \'WL\'";
-				status = esql.executeQueryAndPrintResult(query);
-				query2 = "UPDATE Patient SET number_of_appts = (number_of_appts + 1)";
-				status = esql.executeQueryAndPrintResult(query);
-				query2 = "INSERT INTO has_appt(appt_id, doctor_id) VALUES (\'" + appt_id + "\', \'" + doc_id + "\';)"; 
-				status = esql.executeQueryAndPrintResult(query);
-				System.out.println("total row(s): " + status);
-				System.out.print("Updated to waitlist\n");
-
-			}
-                        query = "SELECT A.status FROM Appointment A, has_appointment H, Doctor D, searches S, Patient P WHERE P.patient_ID = " + pat_id + " AND D.doctor_ID = " + doc_id + " AND A.appnt_ID = " + appt_id + " ANDP.patient_ID = S.pid AND S.aid = A.appnt_ID AND A.appnt_ID = H.appt_id AND H.doctor_id = D.doctor_ID AND appnt_ID = \'" + appt_id + "\' AND A.status = \'AV\';";
-                        status = esql.executeQueryAndPrintResult(query);
-                        if (status != 0) {
-                                // appt exists and add update patient, has_appt, appt (status av -> ac)
-				query2 = "UPDATE Appointment SET status = \'AC\'";
-				status = esql.executeQueryAndPrintResult(query);
-				query2 = "UPDATE Patient SET number_of_appts = (number_of_appts + 1)";
-				status = esql.executeQueryAndPrintResult(query);
-				query2 = "INSERT INTO has_appt(appt_id, doctor_id) VALUES (\'" + appt_id + "\', \'" + doc_id + "\';)"; 
-				status = esql.executeQueryAndPrintResult(query);
-				System.out.println("total row(s): " + status);
-				System.out.print("Updated to active\n");
-			}
-			else { System.out.print("No updates\n"); }
-			
-			
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-
-	}
-
-	public static void ListAppointmentsOfDoctor(DBproject esql) {//5
-		// For a doctor ID and a date range, find the list of active and available appointments of the doctor
-		try {
-			String query = "SELECT * FROM Appointment, has_appointment WHERE appnt_ID = appt_id AND (status = \'AC\' OR status = \'AV\') AND doctor_id = \'";
-			System.out.print("\tEnter doctor id: ");
-			String input = in.readLine();
-			query += input;
-			query += "\' AND (adate BETWEEN \'"; 
-			System.out.print("\tEnter first date of date range of the appt (MM/DD/YYYY): ");
-			input = in.readLine();
-			query += (input + "\' AND \'");
-			System.out.print("\tEnter second date of date range of the appt (MM/DD/YYYY): ");
-			input = in.readLine();
-			query += (input + "\');");
-						
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println ("total row(s): " + rowCount);
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-
-	public static void ListAvailableAppointmentsOfDepartment(DBproject esql) {//6
-		// For a department name and a specific date, find the list of available appointments of the department
-		try {
-			String query = "SELECT * FROM Appointment, has_appointment, request_maintenance WHERE appnt_ID = appt_id AND doctor_id = did AND status = \'AV\' ANDdept_name = \'";
-                        System.out.print("\tEnter department name: ");
-                        String input = in.readLine();
-                        query += input + "\' AND adate = \'";
-                        System.out.print("\tEnter date of appointment: ");
-                        input = in.readLine();
-                        query += input + "\';";
-			
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-
-	public static void ListStatusNumberOfAppointmentsPerDoctor(DBproject esql) {//7
-		// Count number of different types of appointments per doctors and list them in descending order
-		try {
-			String query = "SELECT D.doctor_ID, COUNT(A.appnt_id) AS count FROM Doctor D, has_appointment H, Appointment A WHERE D.doctor_ID = H.doctor_id AND A.appnt_ID = H.appt_id GROUP BY D.doctor_ID ORDER BY count DESC;";
-
-                        int rowCount = esql.executeQueryAndPrintResult(query);	
-			System.out.println("total row(s): " + rowCount);
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-	
-	public static void FindPatientsCountWithStatus(DBproject esql) {//8
-		// Find how many patients per doctor there are with a given status (i.e. PA, AC, AV, WL) and list that number per doctor.
-		try {
-			String query = "SELECT D.doctor_ID, COUNT(P.patient_ID) AS pcount FROM Patient P, searches S, Appointment A, has_appointment H, Doctor D WHERE P.patient_ID = S.pid AND S.aid = A.appnt_ID AND A.appnt_ID = H.appt_id AND H.doctor_id = D.doctor_ID AND A.status = \'";
-                        System.out.println("\tEnter status of appointment: ");
-                        String input = in.readLine();
-                        query += (input + "\' GROUP BY D.doctor_ID;");
-			
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
-		}catch(Exception e) {
-			System.err.println(e.getMessage());
-		}
-	}
-	
-}
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * This class defines a simple embedded SQL utility class that is designed to
+ * work with PostgreSQL JDBC drivers.
+ *
+ */
+
+public class DBproject{
+	//pool of physical database connections, each with its prepared statement cache
+	private ConnectionPool _pool = null;
+	private BookingEngine _booking = null;
+	private IdAllocator _ids = null;
+	private ReferenceCache _reference = null;
+	//set with -Ddbproject.explain=<file> to log the plan of every query
+	private PlanRecorder _plans = null;
+	//latency, rows, bytes, connection wait and errors of every call, per query shape
+	private QueryMetrics _metrics = null;
+	//whether the doctor_status_count summary exists
+	private boolean _statusCounts = false;
+	//option 6 without a query, once sql/migrations/003 is applied
+	private AvailabilityIndex _availability = null;
+	//capacity checks of the booking options, once sql/migrations/003 is applied
+	private ScheduleEngine _schedule = null;
+	//set with -Ddbproject.partitions.maintainMs=<period> to keep the Appointment partitions from here
+	private PartitionMaintainer _partitions = null;
+	//the connect, when it runs in the background, see awaitReady
+	private Future<Void> _ready = null;
+	private final Startup _startup = new Startup();
+	//option 9, made on first use
+	private ReportEngine _reports = null;
+	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//rows fetched per round trip by streamQuery
+	static final int FETCH_SIZE = Integer.getInteger("dbproject.fetchSize", 1000);
+	private static final Object[] NO_PARAMS = new Object[0];
+	//statements of the menu options, shared with the HTTP API of ApiServer
+	static final String ADD_DOCTOR_SQL = "INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES (?, ?, ?, ?);";
+	static final String ADD_PATIENT_SQL = "INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts) VALUES (?, ?, ?, ?, ?, ?);";
+	static final String ADD_APPOINTMENT_SQL = "INSERT INTO Appointment (appnt_ID , adate, time_slot, status) VALUES (?, CAST(? AS DATE), ?, ?);";
+	static final String APPOINTMENTS_OF_DOCTOR_SQL = "SELECT * FROM Appointment, has_appointment WHERE appnt_ID = appt_id AND (status = 'AC' OR status = 'AV') AND doctor_id = ? AND (adate BETWEEN CAST(? AS DATE) AND CAST(? AS DATE));";
+	static final String APPOINTMENTS_PER_DOCTOR_SQL = "SELECT H.doctor_id, COUNT(A.appnt_id) AS count FROM has_appointment H, Appointment A WHERE A.appnt_ID = H.appt_id GROUP BY H.doctor_id ORDER BY count DESC;";
+	static final String PATIENTS_PER_DOCTOR_SQL = "SELECT H.doctor_id, COUNT(S.pid) AS pcount FROM searches S, Appointment A, has_appointment H WHERE S.aid = A.appnt_ID AND A.appnt_ID = H.appt_id AND A.status = ? GROUP BY H.doctor_id;";
+	// options 7 and 8 read from the doctor_status_count summary once sql/migrations/002 is applied
+	static final String APPOINTMENTS_PER_DOCTOR_COUNTED_SQL = "SELECT doctor_id, CAST(SUM(appointments) AS BIGINT) AS count FROM doctor_status_count GROUP BY doctor_id HAVING SUM(appointments) > 0 ORDER BY count DESC;";
+	static final String PATIENTS_PER_DOCTOR_COUNTED_SQL = "SELECT doctor_id, patients AS pcount FROM doctor_status_count WHERE status = ? AND patients > 0;";
+	// the request_maintenance side of the join comes from the reference cache
+	static final String AVAILABLE_OF_DEPARTMENT_SQL = "SELECT * FROM Appointment, has_appointment WHERE appnt_ID = appt_id AND status = 'AV' AND adate = CAST(? AS DATE) AND doctor_id = ANY(CAST(? AS int[]));";
+	
+	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, false);
+	}
+
+	/**
+	 * @param background whether to connect on a background thread and return
+	 *        right away, see awaitReady
+	 */
+	public DBproject(String dbname, String dbport, String user, String passwd, boolean background) throws SQLException {
+		System.out.print("Connecting to database...");
+		// constructs the connection URL
+		final String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?reWriteBatchedInserts=true";
+		System.out.println ("Connection URL: " + url + "\n");
+		if (background) {
+			final FutureTask<Void> ready = new FutureTask<Void> (new Callable<Void> () {
+				public Void call () throws Exception {
+					open (url, user, passwd);
+					return null;
+				}
+			});
+			this._ready = ready;
+			Thread t = new Thread (new Runnable () {
+				public void run () {
+					ready.run ();
+					if (!failed (ready)) prewarm ();
+				}
+			}, "startup");
+			t.setDaemon (true);
+			t.start ();
+			return;
+		}//end if
+		try{
+			open (url, user, passwd);
+			System.out.println("Done");
+		}catch(Exception e){
+			unableToConnect (e);
+		}
+	}
+
+	private void open (String url, String user, String passwd) throws Exception {
+		// opens the pool of physical connections
+		this._pool = new ConnectionPool(url, user, passwd);
+		this._startup.mark (Startup.CONNECTED);
+		this._booking = new BookingEngine(this._pool);
+		this._ids = new IdAllocator(this._pool);
+		this._reference = new ReferenceCache(this._pool);
+		this._reference.startListener();
+		this._plans = PlanRecorder.fromProperties();
+		this._metrics = new QueryMetrics();
+		this._statusCounts = executeQuery ("SELECT 1 WHERE to_regclass('doctor_status_count') IS NOT NULL;") > 0;
+		boolean notified = executeQuery ("SELECT 1 FROM pg_trigger WHERE tgname = 'appointment_availability_changed';") > 0;
+		if (notified && Boolean.parseBoolean (System.getProperty ("dbproject.availability", "true"))) {
+			this._availability = new AvailabilityIndex (this._pool);
+			this._availability.startListener ();
+			this._booking.setAvailabilityIndex (this._availability);
+		}
+		if (notified && Boolean.parseBoolean (System.getProperty ("dbproject.schedule", "true"))) {
+			this._schedule = new ScheduleEngine (this._pool);
+			this._schedule.startListener ();
+			this._booking.setScheduleEngine (this._schedule);
+		}
+		long maintainMs = Long.getLong ("dbproject.partitions.maintainMs", 0);
+		if (maintainMs > 0 && PartitionMaintainer.isPartitioned (this._pool)) {
+			this._partitions = new PartitionMaintainer (this._pool);
+			this._partitions.start (maintainMs);
+		}
+	}
+
+	private static boolean failed (Future<Void> ready) {
+		try {
+			ready.get ();
+			return false;
+		} catch (InterruptedException | ExecutionException e) {
+			return true;
+		}
+	}
+
+	private static void unableToConnect (Throwable e) {
+		System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+		System.out.println("Make sure you started postgres on this machine");
+		System.exit(-1);
+	}
+
+	/**
+	 * Method to open a few more connections and prepare the statements of
+	 * the menu options on them, while nobody waits for it.
+	 */
+	private void prewarm () {
+		try {
+			List<String> hot = new ArrayList<String> (Arrays.asList (ADD_DOCTOR_SQL, ADD_PATIENT_SQL, ADD_APPOINTMENT_SQL,
+				APPOINTMENTS_OF_DOCTOR_SQL, appointmentsPerDoctorQuery (), patientsPerDoctorQuery ()));
+			if (this._availability == null) hot.add (AVAILABLE_OF_DEPARTMENT_SQL);
+			hot.addAll (Arrays.asList (BookingEngine.STATEMENTS));
+			this._pool.prewarm (Startup.PREWARM_CONNECTIONS, hot.toArray (new String[0]));
+			this._startup.mark (Startup.WARMED);
+		} catch (SQLException e) {
+			// the statements are prepared on first use instead.
+			System.err.println ("Warming the connections failed: " + e.getMessage ());
+		}
+	}
+
+	/**
+	 * Method to wait until a background connect is done. Returns right away
+	 * once it is, or when the connect was not in the background; exits the
+	 * program, as the constructor does, when it failed.
+	 */
+	public void awaitReady () {
+		if (this._ready == null) return;
+		boolean waiting = !this._ready.isDone ();
+		long start = System.nanoTime ();
+		try {
+			this._ready.get ();
+		} catch (ExecutionException e) {
+			unableToConnect (e.getCause ());
+		} catch (InterruptedException e) {
+			unableToConnect (e);
+		}
+		if (waiting) this._startup.waited (System.nanoTime () - start);
+	}
+
+	/**
+	 * @return the times of the start of this session
+	 */
+	public Startup getStartup () {
+		return this._startup;
+	}
+
+	/**
+	 * Method to execute an update SQL statement.  Update SQL instructions
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * 
+	 * @param sql the input SQL string, with '?' placeholders for the params
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long called = System.nanoTime ();
+		ConnectionPool.PooledConnection pc = borrow (sql, called, params);
+		long waited = System.nanoTime () - called;
+		int rowCount = 0;
+		boolean failed = true;
+		try {
+			// obtains the cached statement object for this query shape
+			PreparedStatement stmt = prepare (pc, sql, params);
+
+			// issues the update instruction
+			long start = System.nanoTime ();
+			rowCount = stmt.executeUpdate ();
+			pc.statements ().record (sql, System.nanoTime () - start);
+			failed = false;
+			return rowCount;
+		} finally {
+			this._pool.release (pc);
+			this._metrics.record (sql, waited, System.nanoTime () - called, rowCount, 0, failed, params);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to borrow a pooled connection for a statement, counting the
+	 * statement as failed when none can be had.
+	 */
+	private ConnectionPool.PooledConnection borrow (String sql, long called, Object[] params) throws SQLException {
+		try {
+			return this._pool.borrow ();
+		} catch (SQLException e) {
+			long nanos = System.nanoTime () - called;
+			this._metrics.record (sql, nanos, nanos, 0, 0, true, params);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and outputs the results to
+	 * standard out, or to the file named by dbproject.output.
+	 * 
+	 * @param query the input query string, with '?' placeholders for the params
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		try {
+			//streams the result set through one buffered writer, formatted per dbproject.output.format
+			ResultPrinter printer = ResultPrinter.fromProperties ();
+			int rowCount = streamQuery (query, printer, params);
+			printer.finish ();
+			return rowCount;
+		} catch (IOException e) {
+			throw new SQLException ("Unable to write the query result: " + e.getMessage (), e);
+		}
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * Use streamQuery for results too large to hold in memory.
+	 * 
+	 * @param query the input query string, with '?' placeholders for the params
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		//saves the data returned by the query. 
+		final List<List<String>> result  = new ArrayList<List<String>>(); 
+		streamQuery (query, new RowVisitor () {
+			public boolean visit (Row row) {
+				int numCol = row.getColumnCount ();
+				List<String> record = new ArrayList<String>(numCol); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(row.getString (i)); 
+				result.add(record); 
+				return true;
+			}
+		}, params);
+		return result; 
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * hand each row to a visitor as it arrives. The query runs in a
+	 * transaction so the driver reads it through a cursor, fetchSize rows
+	 * at a time, instead of loading the whole result set into memory.
+	 * 
+	 * @param query the input query string, with '?' placeholders for the params
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param visitor called once per row, returns false to stop early
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows visited
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int streamQuery (String query, int fetchSize, RowVisitor visitor, Object... params) throws SQLException {
+		long called = System.nanoTime ();
+		ConnectionPool.PooledConnection pc = borrow (query, called, params);
+		long waited = System.nanoTime () - called;
+		int rowCount = 0;
+		long bytes = 0;
+		boolean failed = true;
+		try {
+			pc.connection ().setAutoCommit (false);
+			if (this._plans != null){
+				this._plans.record (pc, query, params);
+				pc.connection ().commit ();
+			}//end if
+			PreparedStatement stmt = prepare (pc, query, params);
+			stmt.setFetchSize (fetchSize);
+			long start = System.nanoTime ();
+			ResultSet rs = stmt.executeQuery ();
+			pc.statements ().record (query, System.nanoTime () - start);
+
+			Row row = new Row (rs.getMetaData ());
+			while (rs.next ()){
+				row.fill (rs);
+				++rowCount;
+				bytes += row.byteSize ();
+				if (!visitor.visit (row)) break;
+			}//end while
+			rs.close ();
+			pc.connection ().commit ();
+			failed = false;
+			return rowCount;
+		} finally {
+			this._pool.release (pc);
+			this._metrics.record (query, waited, System.nanoTime () - called, rowCount, bytes, failed, params);
+		}
+	}//end streamQuery
+
+	public int streamQuery (String query, RowVisitor visitor, Object... params) throws SQLException {
+		return streamQuery (query, FETCH_SIZE, visitor, params);
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the number of results.
+	 * The count is computed by the DBMS, no rows are sent back.
+	 * 
+	 * @param query the input query string, with '?' placeholders for the params
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		String inner = query.trim ();
+		if (inner.endsWith (";")) inner = inner.substring (0, inner.length () - 1);
+		String count = "SELECT count(*) FROM (" + inner + ") AS q;";
+
+		long called = System.nanoTime ();
+		ConnectionPool.PooledConnection pc = borrow (query, called, params);
+		long waited = System.nanoTime () - called;
+		int rowCount = 0;
+		boolean failed = true;
+		try {
+			//issues the query instruction
+			ResultSet rs = executeCached (pc, count, params);
+			try {
+				rowCount = rs.next () ? rs.getInt (1) : 0;
+				failed = false;
+				return rowCount;
+			} finally {
+				rs.close ();
+			}
+		} finally {
+			this._pool.release (pc);
+			//only the count is sent back
+			this._metrics.record (query, waited, System.nanoTime () - called, rowCount, failed ? 0 : 8, failed, params);
+		}
+	}
+	
+	/**
+	 * Method to fetch the last value from sequence. This
+	 * method returns the last id the IdAllocator handed out from the
+	 * sequence used for autogenerated keys, no query is issued
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return last id taken from the sequence, or -1
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	
+	public int getCurrSeqVal(String sequence) throws SQLException {
+		long called = System.nanoTime ();
+		int id = (int) this._ids.last (sequence);
+		this._metrics.record ("getCurrSeqVal", 0, System.nanoTime () - called, id < 0 ? 0 : 1, 0, false, NO_PARAMS);
+		return id;
+	}
+
+	/**
+	 * @return the query of option 7, on the per doctor summary when there is one
+	 */
+	public String appointmentsPerDoctorQuery () {
+		return this._statusCounts ? APPOINTMENTS_PER_DOCTOR_COUNTED_SQL : APPOINTMENTS_PER_DOCTOR_SQL;
+	}
+
+	/**
+	 * @return the query of option 8, taking the status, on the per doctor summary when there is one
+	 */
+	public String patientsPerDoctorQuery () {
+		return this._statusCounts ? PATIENTS_PER_DOCTOR_COUNTED_SQL : PATIENTS_PER_DOCTOR_SQL;
+	}
+
+	/**
+	 * @return the metrics of the statements run through this object
+	 */
+	public QueryMetrics getMetrics () {
+		return this._metrics;
+	}
+
+	/**
+	 * @return the allocator the Add* options take new ids from
+	 */
+	public IdAllocator getIdAllocator () {
+		return this._ids;
+	}
+
+	/**
+	 * Method to look up the cached statement for a query shape and bind
+	 * the parameters to it.
+	 */
+	static PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		PreparedStatement stmt = pc.statements ().prepare (sql);
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject (i + 1, params[i]);
+		return stmt;
+	}
+
+	static ResultSet executeCached (ConnectionPool.PooledConnection pc, String query, Object[] params) throws SQLException {
+		PreparedStatement stmt = prepare (pc, query, params);
+		long start = System.nanoTime ();
+		ResultSet rs = stmt.executeQuery ();
+		pc.statements ().record (query, System.nanoTime () - start);
+		return rs;
+	}
+
+	/**
+	 * @return the pool the execute methods borrow their connections from
+	 */
+	public ConnectionPool getPool () {
+		return this._pool;
+	}
+
+	/**
+	 * @return the engine MakeAppointment books through
+	 */
+	public BookingEngine getBookingEngine () {
+		return this._booking;
+	}
+
+	/**
+	 * Method to find where a doctor has room for an appointment that did not
+	 * fit, from its own date and time slot on.
+	 *
+	 * @param doctorId the doctor
+	 * @param date the wanted date
+	 * @param timeSlot the wanted time slot, its length is kept
+	 * @param max the most slots returned
+	 * @return each as "MM/DD/YYYY HH:MM-HH:MM", none when the slots are not checked
+	 */
+	public List<String> suggestSlots (int doctorId, String date, String timeSlot, int max) {
+		long day = AvailabilityIndex.parseDay (date);
+		int slot = ScheduleEngine.parseSlot (timeSlot);
+		if (this._schedule == null || !this._schedule.isReady () || day == Long.MIN_VALUE || slot < 0) return new ArrayList<String> ();
+		return this._schedule.suggest (doctorId, day, slot, max);
+	}
+
+	/**
+	 * Method to find where a doctor has room for an existing appointment that did not fit.
+	 */
+	public List<String> suggestSlots (int doctorId, int apptId, int max) throws SQLException {
+		final String[] wanted = new String[2];
+		streamQuery ("SELECT adate, time_slot FROM Appointment WHERE appnt_ID = ?;", new RowVisitor () {
+			public boolean visit (Row row) {
+				wanted[0] = row.getDate (1).toString ();
+				wanted[1] = row.getString (2);
+				return false;
+			}
+		}, apptId);
+		if (wanted[0] == null) return new ArrayList<String> ();
+		return suggestSlots (doctorId, wanted[0], wanted[1], max);
+	}
+
+	/**
+	 * Method to find the available appointments of a department on a date,
+	 * joined with the request_maintenance rows of the department.
+	 *
+	 * @param dept the department name
+	 * @param date the appointment date
+	 * @param out called once per joined row
+	 * @return the number of rows passed to out
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int listAvailableAppointments (String dept, String date, RowVisitor out) throws SQLException {
+		ReferenceCache.Maintenance[] maintenance = this._reference.getMaintenance (dept);
+		if (maintenance.length == 0) return 0;
+		ReferenceCache.MaintenanceJoin join = new ReferenceCache.MaintenanceJoin (maintenance, out);
+		long day = AvailabilityIndex.parseDay (date);
+		if (this._availability != null && this._availability.isReady () && day != Long.MIN_VALUE) {
+			long called = System.nanoTime ();
+			int rowCount = this._availability.list (ReferenceCache.doctors (maintenance), day, join);
+			this._metrics.record ("AvailabilityIndex.list", 0, System.nanoTime () - called, rowCount, 0, false, NO_PARAMS);
+		} else {
+			streamQuery (AVAILABLE_OF_DEPARTMENT_SQL, join, date, ReferenceCache.doctorIds (maintenance));
+		}
+		return join.getCount ();
+	}
+
+	/**
+	 * @return the engine of the hospital reports, made on first use
+	 */
+	public synchronized ReportEngine getReportEngine () {
+		if (this._reports == null) this._reports = new ReportEngine (this._pool, this._reference);
+		return this._reports;
+	}
+
+	/**
+	 * @return the cache of the Doctor, Department, Hospital, Staff and request_maintenance tables
+	 */
+	public ReferenceCache getReferenceCache () {
+		return this._reference;
+	}
+
+	/**
+	 * Method to close the physical connections if they are open.
+	 */
+	public void cleanup(){
+		awaitReady ();
+		if (this._plans != null) this._plans.close ();
+		if (this._partitions != null) this._partitions.close ();
+		if (this._reports != null) this._reports.close ();
+		if (this._schedule != null){
+			if (Boolean.getBoolean("dbproject.stats"))
+				System.err.println(this._schedule.stats());
+			this._schedule.close ();
+		}//end if
+		if (this._availability != null){
+			if (Boolean.getBoolean("dbproject.stats"))
+				System.err.println(this._availability.stats());
+			this._availability.close ();
+		}//end if
+		if (this._metrics != null){
+			if (Boolean.getBoolean("dbproject.stats"))
+				System.err.print(this._metrics.dump());
+			this._metrics.close ();
+		}//end if
+		if (this._reference != null){
+			if (Boolean.getBoolean("dbproject.stats"))
+				System.err.println(this._reference.stats());
+			this._reference.close ();
+		}//end if
+		if (Startup.FAST || Boolean.getBoolean("dbproject.stats"))
+			System.err.println(this._startup.report());
+		if (this._pool != null){
+			if (Boolean.getBoolean("dbproject.stats"))
+				System.err.println(this._pool.stats());
+			this._pool.close ();
+		}//end if
+	}//end cleanup
+	/**
+	 * The main execution method
+	 * 
+	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 */
+	public static void main (String[] args) {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
+		            " <dbname> <port> <user> [--batch <table> <csv file> [chunk size]]");
+			return;
+		}//end if
+		
+		DBproject esql = null;
+		
+		try{
+			System.out.println("(1)");
+			
+			try {
+				// a fast start leaves the driver to the background connect
+				if (!Startup.FAST) Class.forName("org.postgresql.Driver");
+			}catch(Exception e){
+
+				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+				e.printStackTrace();
+				return;
+			}
+			
+			System.out.println("(2)");
+			String dbname = args[0];
+			String dbport = args[1];
+			String user = args[2];
+			
+			esql = new DBproject (dbname, dbport, user, "", Startup.FAST);
+			
+			// non interactive batch insert of a file of records
+			if (args.length > 3 && args[3].equals("--batch")) {
+				esql.awaitReady ();
+				BatchInserter.run(esql, Arrays.copyOfRange(args, 3, args.length));
+				return;
+			}
+			
+			boolean keepon = true;
+			while(keepon){
+				System.out.println("MAIN MENU");
+				System.out.println("---------");
+				System.out.println("1. Add Doctor");
+				System.out.println("2. Add Patient");
+				System.out.println("3. Add Appointment");
+				System.out.println("4. Make an Appointment");
+				System.out.println("5. List appointments of a given doctor and date range");
+				System.out.println("6. List all available appointments of a given department");
+				System.out.println("7. List total number of different types of appointments per doctor in descending order");
+				System.out.println("8. Find total number of patients per doctor with a given status");
+				System.out.println("9. Hospital reports");
+				System.out.println("10. < EXIT");
+				esql.getStartup ().mark (Startup.MENU);
+				
+				int choice = readChoice();
+				// the menu is up before the database when starting fast
+				if (choice != 10) esql.awaitReady ();
+				switch (choice){
+					case 1: AddDoctor(esql); break;
+					case 2: AddPatient(esql); break;
+					case 3: AddAppointment(esql); break;
+					case 4: MakeAppointment(esql); break;
+					case 5: ListAppointmentsOfDoctor(esql); break;
+					case 6: ListAvailableAppointmentsOfDepartment(esql); break;
+					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
+					case 8: FindPatientsCountWithStatus(esql); break;
+					case 9: HospitalReports(esql); break;
+					case 10: keepon = false; break;
+				}
+				if (choice >= 1 && choice <= 9) esql.getStartup ().mark (Startup.FIRST_QUERY);
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+		}finally{
+			try{
+				if(esql != null) {
+					System.out.print("Disconnecting from database...");
+					esql.cleanup ();
+					System.out.println("Done\n\nBye !");
+				}//end if				
+			}catch(Exception e){
+				// ignored.
+			}
+		}
+	}
+
+	public static int readChoice() {
+		int input;
+		// returns only if a correct value is given.
+		do {
+			System.out.print("Please make your choice: ");
+			try { // read the integer, parse it and break.
+				input = Integer.parseInt(in.readLine());
+				break;
+			}catch (Exception e) {
+				System.out.println("Your input is invalid!");
+				continue;
+			}//end try
+		}while (true);
+		return input;
+	}//end readChoice
+	public static void AddDoctor(DBproject esql) {//1
+		try {
+			String query = ADD_DOCTOR_SQL;
+			System.out.print("\tEnter new doctor's name: ");
+			String name = in.readLine();
+			System.out.print("\tEnter new doctor's specialty: ");
+			String specialty = in.readLine();
+			System.out.print("\tEnter new doctor's department id: ");
+			int did = Integer.parseInt(in.readLine());
+
+			int id = esql.getIdAllocator().nextInt(IdAllocator.DOCTOR);
+			int rowCount = esql.executeUpdate(query, id, name, specialty, did);
+			System.out.println("New doctor's id: " + id);
+			System.out.println("total row(s): " + rowCount);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+// need to test
+	public static void AddPatient(DBproject esql) {//2
+		int age;
+		int number;
+		try {
+			String query = ADD_PATIENT_SQL;
+			System.out.print("\tEnter new patient's name: ");
+			String name = in.readLine();
+			System.out.print("\tEnter new patient's gender: ");
+			String gender = in.readLine();
+			do{
+				System.out.print("\tEnter new patient's age: ");
+				age = Integer.parseInt(in.readLine());
+			}while(age < 0);
+			System.out.print("\tEnter new patient's address: ");
+			String address = in.readLine();
+			do{
+				System.out.print("\tEnter new patient's number of appointments: ");
+				number = Integer.parseInt(in.readLine());
+			}while(number < 0);
+			
+			int id = esql.getIdAllocator().nextInt(IdAllocator.PATIENT);
+			int rowCount = esql.executeUpdate(query, id, name, gender, age, address, number);
+			System.out.println("New patient's id: " + id);
+			System.out.println("total row(s): " + rowCount);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+// need to test
+	public static void AddAppointment(DBproject esql) {//3
+		String status;
+		try {
+			String query = ADD_APPOINTMENT_SQL;
+			System.out.print("\tEnter new appointment's date (MM/DD/YYYY): ");
+			String date = in.readLine();
+			System.out.print("\tEnter new appointment's time slot (HH:MM-HH:MM): ");
+			String timeSlot = in.readLine();
+			do{
+				System.out.print("\tEnter new appointment's status (AV, AC, PA, WL): ");
+				status = in.readLine();
+			}while(!status.equals("AV") && !status.equals("AC") && !status.equals("PA") && !status.equals("WL"));
+			if (ScheduleEngine.parseSlot(timeSlot) < 0){
+				System.out.println("Not a time slot of one day: " + timeSlot);
+				return;
+			}
+			System.out.print("\tEnter doctor ID of the appointment (empty for none): ");
+			String doctor = in.readLine().trim();
+			
+			int id = esql.getIdAllocator().nextInt(IdAllocator.APPOINTMENT);
+			if (doctor.isEmpty()) {
+				int rowCount = esql.executeUpdate(query, id, date, timeSlot, status);
+				System.out.println("New appointment's id: " + id);
+				System.out.println("total row(s): " + rowCount);
+			} else if (esql.getBookingEngine().add(id, date, timeSlot, status, Integer.parseInt(doctor))) {
+				System.out.println("New appointment's id: " + id);
+			} else {
+				System.out.println("The doctor is full during " + timeSlot + " on " + date);
+				printSuggestions(esql.suggestSlots(Integer.parseInt(doctor), date, timeSlot, 3));
+			}
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+
+	public static void MakeAppointment(DBproject esql) {//4
+		// Given a patient, a doctor and an appointment of the doctor that s/he wants to take, add an appointment to the DB
+		// First, we have to find out the status from appointment table. If the status is available/active, insert/update tuples 
+		// in patient, has_appointment tables, and change the status (available -> active, active -> waitlisted) in appointment 
+		// table. If the status is waitlisted, update/insert tuples in patient and had_appointment tables. For the past status, we have nothing to do.
+		try {
+			System.out.print("\tEnter patient ID of patient who wants to make an appointment: " );
+                        int pat_id = Integer.parseInt(in.readLine());
+                        System.out.print("\tEnter doctor ID of doctor patient wants to make an appointment with: ");
+                        int doc_id = Integer.parseInt(in.readLine());
+                        System.out.print("\tEnter appointment ID of appointment the patient wants: ");
+                        int appt_id = Integer.parseInt(in.readLine());
+			BookingEngine.Outcome outcome = esql.getBookingEngine().book(pat_id, doc_id, appt_id);
+			switch (outcome) {
+				case ACTIVE: System.out.print("Updated to active\n"); break;
+				case WAITLISTED: System.out.print("Updated to waitlist\n"); break;
+				case CONFLICT:
+					System.out.print("The doctor is full during this appointment\n");
+					printSuggestions(esql.suggestSlots(doc_id, appt_id, 3));
+					break;
+				default: System.out.print("No updates\n"); break;
+			}
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+
+	}
+
+	private static void printSuggestions(List<String> slots) {
+		if (slots.isEmpty()) return;
+		System.out.println("Next free slots of the doctor:");
+		for (String slot : slots)
+			System.out.println("\t" + slot);
+	}
+
+	public static void ListAppointmentsOfDoctor(DBproject esql) {//5
+		// For a doctor ID and a date range, find the list of active and available appointments of the doctor
+		try {
+			String query = APPOINTMENTS_OF_DOCTOR_SQL;
+			System.out.print("\tEnter doctor id: ");
+			int doc_id = Integer.parseInt(in.readLine());
+			System.out.print("\tEnter first date of date range of the appt (MM/DD/YYYY): ");
+			String from = in.readLine();
+			System.out.print("\tEnter second date of date range of the appt (MM/DD/YYYY): ");
+			String to = in.readLine();
+						
+			int rowCount = esql.executeQueryAndPrintResult(query, doc_id, from, to);
+			System.out.println ("total row(s): " + rowCount);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ListAvailableAppointmentsOfDepartment(DBproject esql) {//6
+		// For a department name and a specific date, find the list of available appointments of the department
+		try {
+                        System.out.print("\tEnter department name: ");
+                        String dept = in.readLine();
+                        System.out.print("\tEnter date of appointment: ");
+                        String date = in.readLine();
+			
+			ResultPrinter printer = ResultPrinter.fromProperties();
+			int rowCount = esql.listAvailableAppointments(dept, date, printer);
+			printer.finish();
+			System.out.println("total row(s): " + rowCount);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ListStatusNumberOfAppointmentsPerDoctor(DBproject esql) {//7
+		// Count number of different types of appointments per doctors and list them in descending order
+		try {
+			// has_appointment.doctor_id references Doctor, so Doctor itself does not need to be joined
+			String query = esql.appointmentsPerDoctorQuery();
+
+                        int rowCount = esql.executeQueryAndPrintResult(query);	
+			System.out.println("total row(s): " + rowCount);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	public static void FindPatientsCountWithStatus(DBproject esql) {//8
+		// Find how many patients per doctor there are with a given status (i.e. PA, AC, AV, WL) and list that number per doctor.
+		try {
+			// searches.pid and has_appointment.doctor_id are foreign keys, so Patient and Doctor do not need to be joined
+			String query = esql.patientsPerDoctorQuery();
+                        System.out.println("\tEnter status of appointment: ");
+                        String status = in.readLine();
+			
+			int rowCount = esql.executeQueryAndPrintResult(query, status);
+			System.out.println("total row(s): " + rowCount);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	public static void HospitalReports(DBproject esql) {//9
+		// Run one of the hospital-wide reports in parallel, showing the progress until it ends or Enter is pressed
+		try {
+			for (int i = 0; i < ReportEngine.REPORTS.length; ++i)
+				System.out.println("\t" + (i + 1) + ". " + ReportEngine.REPORTS[i].getDescription());
+			System.out.print("\tEnter report: ");
+			int choice = Integer.parseInt(in.readLine().trim());
+			if (choice < 1 || choice > ReportEngine.REPORTS.length) {
+				System.out.println("Your input is invalid!");
+				return;
+			}//end if
+
+			ReportEngine.Run run = esql.getReportEngine().start(ReportEngine.REPORTS[choice - 1], null);
+			System.err.println("\tPress Enter to cancel");
+			while (!run.await(200)) {
+				System.err.print("\r\t" + run.getChunksDone() + "/" + run.getChunks() + " chunk(s)");
+				if (in.ready()) {
+					in.readLine();
+					run.cancel();
+					run.await(Long.MAX_VALUE);
+				}//end if
+			}//end while
+			System.err.println();
+
+			ResultPrinter printer = ResultPrinter.fromProperties();
+			int rowCount = run.visit(printer);
+			printer.finish();
+			System.out.println("total row(s): " + rowCount);
+			System.out.println(String.format("%d/%d chunk(s) in %.0f ms%s", run.getChunksDone(), run.getChunks(),
+				run.getNanos() / 1e6, run.isCancelled() ? ", cancelled" : ""));
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	
+}
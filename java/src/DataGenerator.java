@@ -0,0 +1,129 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class writes a larger copy of the data/*.csv files for load and
+ * benchmark runs. At scale N every row is written N times; copy k adds
+ * k times the id span of a table to its ids and to the foreign keys
+ * pointing at it, so the copies are disjoint and keep the shape of the
+ * original data: the same rows per doctor, status mix, dates and
+ * department names. The output directory can be loaded with load.sh.
+ *
+ */
+
+public class DataGenerator{
+	/**
+	 * For each table, the table whose ids each column holds, or null when
+	 * the column is not an id.
+	 */
+	static final Map<String, String[]> IDS = new HashMap<String, String[]>();
+	static{
+		IDS.put("Patient", new String[] { "Patient", null, null, null, null, null });
+		IDS.put("Hospital", new String[] { "Hospital", null });
+		IDS.put("Appointment", new String[] { "Appointment", null, null, null });
+		IDS.put("Department", new String[] { "Department", null, "Hospital" });
+		IDS.put("Staff", new String[] { "Staff", null, "Hospital" });
+		IDS.put("Doctor", new String[] { "Doctor", null, null, "Department" });
+		IDS.put("request_maintenance", new String[] { null, null, null, "Doctor", "Staff" });
+		IDS.put("searches", new String[] { "Hospital", "Patient", "Appointment" });
+		IDS.put("schedules", new String[] { "Appointment", "Staff" });
+		IDS.put("has_appointment", new String[] { "Appointment", "Doctor" });
+	}
+
+	private final File _in;
+	private final File _out;
+	//largest id + 1 of each table with an id column
+	private final Map<String, Long> _spans = new HashMap<String, Long>();
+
+	public DataGenerator(File in, File out) throws IOException {
+		this._in = in;
+		this._out = out;
+		for (BulkLoader.Table[] level : BulkLoader.LEVELS)
+			for (BulkLoader.Table table : level)
+				if (table.name.equals(IDS.get(table.name)[0])){
+					long max = -1;
+					for (String line : lines(table))
+						max = Math.max(max, Long.parseLong(line.split(",", -1)[0].trim()));
+					this._spans.put(table.name, max + 1);
+				}//end if
+	}
+
+	private List<String> lines(BulkLoader.Table table) throws IOException {
+		return Files.readAllLines(new File(this._in, table.file).toPath(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Method to write every table at the given scale.
+	 *
+	 * @param scale the number of copies of each row, 1 for the original data
+	 */
+	public void generate(int scale) throws IOException {
+		if (!this._out.isDirectory() && !this._out.mkdirs()) throw new IOException("Unable to create " + this._out.getPath());
+		for (BulkLoader.Table[] level : BulkLoader.LEVELS)
+			for (BulkLoader.Table table : level){
+				long start = System.nanoTime();
+				long rows = generate(table, scale);
+				System.out.println(String.format("%-20s %12d rows %8.2f s", table.name, rows, (System.nanoTime() - start) / 1e9));
+			}//end for
+	}
+
+	private long generate(BulkLoader.Table table, int scale) throws IOException {
+		String[] ids = IDS.get(table.name);
+		List<String> lines = lines(table);
+		String[][] rows = new String[lines.size()][];
+		for (int i = 0; i < rows.length; ++i)
+			rows[i] = lines.get(i).split(",", -1);
+		long[] spans = new long[ids.length];
+		for (int c = 0; c < ids.length; ++c)
+			spans[c] = ids[c] == null ? 0 : this._spans.get(ids[c]);
+
+		long written = 0;
+		StringBuilder line = new StringBuilder(256);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this._out, table.file)), StandardCharsets.UTF_8), 1 << 20)){
+			for (int k = 0; k < scale; ++k){
+				for (String[] row : rows){
+					if (row.length == 1 && row[0].isEmpty()) continue;
+					line.setLength(0);
+					for (int c = 0; c < row.length; ++c){
+						if (c > 0) line.append(',');
+						if (c < spans.length && spans[c] > 0) line.append(Long.parseLong(row[c].trim()) + k * spans[c]);
+						else line.append(row[c]);
+					}//end for
+					out.write(line.append('\n').toString());
+					++written;
+				}//end for
+			}//end for
+		}
+		return written;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1){
+			System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName()
+				+ " <scale> [data dir] [output dir]");
+			return;
+		}//end if
+		int scale = Integer.parseInt(args[0]);
+		File in = new File(args.length > 1 ? args[1] : "../data");
+		File out = new File(args.length > 2 ? args[2] : new File(in, "x" + scale).getPath());
+		if (scale < 1){
+			System.err.println("scale must be at least 1");
+			return;
+		}//end if
+		if (out.getCanonicalFile().equals(in.getCanonicalFile())){
+			System.err.println("the output directory must differ from the data directory");
+			return;
+		}//end if
+		new DataGenerator(in, out).generate(scale);
+		System.out.println("written to " + out.getPath());
+	}
+}
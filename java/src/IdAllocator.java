@@ -0,0 +1,152 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out primary keys from the database sequences created
+ * in sql/create.sql. The sequences count up by BLOCK_SIZE, so one nextval
+ * reserves a whole block of ids for this process. Ids inside a block are
+ * handed out from an AtomicLong, without a round trip, and any number of
+ * clients can allocate at once without colliding.
+ *
+ */
+
+public class IdAllocator{
+	//must match the INCREMENT BY of the id sequences in sql/create.sql
+	public static final int BLOCK_SIZE = 50;
+
+	public static final String DOCTOR = "doctor_id_seq";
+	public static final String PATIENT = "patient_id_seq";
+	public static final String APPOINTMENT = "appointment_id_seq";
+
+	/**
+	 * A reserved block of ids, [next, end).
+	 */
+	private static class Block{
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end){
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+
+	/**
+	 * The current block of one sequence and the last id handed out from it.
+	 */
+	private class Sequence{
+		final String name;
+		volatile Block block = new Block(0, 0);
+		final AtomicLong last = new AtomicLong(-1);
+
+		Sequence(String name){
+			this.name = name;
+		}
+
+		long next() throws SQLException {
+			while (true){
+				Block b = this.block;
+				long id = b.next.getAndIncrement();
+				if (id < b.end){
+					this.last.accumulateAndGet(id, Math::max);
+					return id;
+				}//end if
+				synchronized (this){
+					//another thread may have fetched a new block already
+					if (this.block == b){
+						long start = reserve(this.name);
+						this.block = new Block(start, start + BLOCK_SIZE);
+					}//end if
+				}
+			}//end while
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final ConcurrentHashMap<String, Sequence> _sequences = new ConcurrentHashMap<String, Sequence>();
+	//number of blocks fetched from the database
+	private final AtomicLong _reserved = new AtomicLong();
+
+	public IdAllocator(ConnectionPool pool){
+		this._pool = pool;
+	}
+
+	private Sequence sequence(String name){
+		Sequence seq = this._sequences.get(name);
+		if (seq == null){
+			Sequence fresh = new Sequence(name);
+			seq = this._sequences.putIfAbsent(name, fresh);
+			if (seq == null) seq = fresh;
+		}//end if
+		return seq;
+	}
+
+	/**
+	 * Method to get the next free id of a sequence.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return an id no other caller or client will get
+	 * @throws java.sql.SQLException when a new block can not be reserved
+	 */
+	public long next(String sequence) throws SQLException {
+		return sequence(sequence).next();
+	}
+
+	public int nextInt(String sequence) throws SQLException {
+		return Math.toIntExact(next(sequence));
+	}
+
+	/**
+	 * Method to get the highest id this allocator handed out for a sequence.
+	 * Replaces currval, which only sees the nextval calls made on the same
+	 * connection and so can not be used through the connection pool.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return the last id handed out, or -1 when none was
+	 */
+	public long last(String sequence){
+		Sequence seq = this._sequences.get(sequence);
+		return seq == null ? -1 : seq.last.get();
+	}
+
+	public long getBlocksReserved(){ return this._reserved.get(); }
+
+	private long reserve(String sequence) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT nextval(CAST(? AS regclass));", new Object[] { sequence });
+			try{
+				if (!rs.next()) throw new SQLException("nextval returned no row for " + sequence);
+				this._reserved.incrementAndGet();
+				return rs.getLong(1);
+			}finally{
+				rs.close();
+			}
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to move each id sequence past the largest id already in its
+	 * table, after data was loaded with explicit ids. Never moves a
+	 * sequence backwards, so blocks other clients hold stay unique.
+	 *
+	 * @param pool where to run the statements
+	 */
+	public static void sync(ConnectionPool pool) throws SQLException {
+		String[][] tables = { { DOCTOR, "Doctor", "doctor_ID" }, { PATIENT, "Patient", "patient_ID" }, { APPOINTMENT, "Appointment", "appnt_ID" } };
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			for (String[] t : tables){
+				ResultSet rs = DBproject.executeCached(pc, "SELECT setval(CAST(? AS regclass), GREATEST((SELECT COALESCE(MAX(" + t[2] + ") + 1, 0) FROM " + t[1]
+					+ "), nextval(CAST(? AS regclass))), false);", new Object[] { t[0], t[0] });
+				rs.close();
+			}//end for
+		}finally{
+			pool.release(pc);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+import java.util.Arrays;
+
+/**
+ * A size bounded map from int keys to values, with least recently used
+ * eviction and an optional time to live. Keys are kept in an open
+ * addressing table of ints, so lookups do not box them. Entries live in
+ * parallel arrays linked into the LRU list by index.
+ *
+ */
+
+public class IntLruCache<V>{
+	private final int _capacity;
+	private final long _ttlNanos;
+
+	//hash table of entry index + 1, 0 marks an empty slot
+	private final int[] _table;
+	private final int _mask;
+
+	//entries
+	private final int[] _keys;
+	private final Object[] _values;
+	private final long[] _loaded;
+	private final int[] _prev;
+	private final int[] _next;
+	private int _head = -1;		//most recently used
+	private int _tail = -1;		//least recently used
+	private int _free = 0;		//first never used entry
+	private int _freeList = -1;	//entries freed by remove, chained through _next
+	private int _size = 0;
+
+	/**
+	 * @param capacity the most entries kept
+	 * @param ttlMillis how long an entry stays valid, 0 for no expiry
+	 */
+	public IntLruCache(int capacity, long ttlMillis){
+		this._capacity = Math.max(1, capacity);
+		this._ttlNanos = ttlMillis * 1000000L;
+		int tableSize = Integer.highestOneBit(this._capacity * 2 - 1) << 1;
+		this._table = new int[tableSize];
+		this._mask = tableSize - 1;
+		this._keys = new int[this._capacity];
+		this._values = new Object[this._capacity];
+		this._loaded = new long[this._capacity];
+		this._prev = new int[this._capacity];
+		this._next = new int[this._capacity];
+	}
+
+	private static int hash(int key){
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	//slot of the key, or -1
+	private int find(int key){
+		int i = hash(key) & this._mask;
+		while (this._table[i] != 0){
+			if (this._keys[this._table[i] - 1] == key) return i;
+			i = (i + 1) & this._mask;
+		}//end while
+		return -1;
+	}
+
+	/**
+	 * @return the value, or null when absent or expired
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V get(int key){
+		int slot = find(key);
+		if (slot < 0) return null;
+		int e = this._table[slot] - 1;
+		if (this._ttlNanos > 0 && System.nanoTime() - this._loaded[e] > this._ttlNanos){
+			removeSlot(slot);
+			return null;
+		}//end if
+		unlink(e);
+		pushHead(e);
+		return (V) this._values[e];
+	}
+
+	public synchronized void put(int key, V value){
+		int slot = find(key);
+		int e;
+		if (slot >= 0){
+			e = this._table[slot] - 1;
+			unlink(e);
+		}else{
+			if (this._size == this._capacity) removeSlot(find(this._keys[this._tail]));
+			if (this._freeList >= 0){
+				e = this._freeList;
+				this._freeList = this._next[e];
+			}else{
+				e = this._free++;
+			}//end if
+			this._keys[e] = key;
+			int i = hash(key) & this._mask;
+			while (this._table[i] != 0) i = (i + 1) & this._mask;
+			this._table[i] = e + 1;
+			this._size++;
+		}//end if
+		this._values[e] = value;
+		this._loaded[e] = System.nanoTime();
+		pushHead(e);
+	}
+
+	public synchronized boolean remove(int key){
+		int slot = find(key);
+		if (slot < 0) return false;
+		removeSlot(slot);
+		return true;
+	}
+
+	public synchronized void clear(){
+		Arrays.fill(this._table, 0);
+		Arrays.fill(this._values, null);
+		this._head = this._tail = this._freeList = -1;
+		this._free = this._size = 0;
+	}
+
+	public synchronized int size(){
+		return this._size;
+	}
+
+	private void removeSlot(int slot){
+		int e = this._table[slot] - 1;
+		unlink(e);
+		this._values[e] = null;
+		this._next[e] = this._freeList;
+		this._freeList = e;
+		this._size--;
+
+		//backward shift the probe chain after the slot so lookups still find them
+		this._table[slot] = 0;
+		int i = slot;
+		int j = (slot + 1) & this._mask;
+		while (this._table[j] != 0){
+			int home = hash(this._keys[this._table[j] - 1]) & this._mask;
+			boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+			if (movable){
+				this._table[i] = this._table[j];
+				this._table[j] = 0;
+				i = j;
+			}//end if
+			j = (j + 1) & this._mask;
+		}//end while
+	}
+
+	private void unlink(int e){
+		int p = this._prev[e], n = this._next[e];
+		if (p >= 0) this._next[p] = n; else if (this._head == e) this._head = n;
+		if (n >= 0) this._prev[n] = p; else if (this._tail == e) this._tail = p;
+		this._prev[e] = this._next[e] = -1;
+	}
+
+	private void pushHead(int e){
+		this._prev[e] = -1;
+		this._next[e] = this._head;
+		if (this._head >= 0) this._prev[this._head] = e;
+		this._head = e;
+		if (this._tail < 0) this._tail = e;
+	}
+}
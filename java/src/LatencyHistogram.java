@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets, in the
+ * manner of HdrHistogram: each power of two is split into SUB_BUCKETS
+ * equal buckets, so any recorded value is reported within 1/SUB_BUCKETS
+ * (about 3%) of its true value, from 1 ns up to MAX_NANOS. Recording is
+ * a few shifts and one atomic increment, it does not allocate and can be
+ * called from any number of threads.
+ *
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BUCKET_BITS = 5;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//values above this (about 18 minutes) are counted as this
+	public static final long MAX_NANOS = (1L << 40) - 1;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(index(MAX_NANOS) + 1);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * @return the bucket of a value: values below SUB_BUCKETS have their
+	 * own bucket, larger ones share one with the values that agree on
+	 * their SUB_BUCKET_BITS + 1 highest bits
+	 */
+	static int index(long value){
+		if (value < SUB_BUCKETS) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the largest value counted in a bucket
+	 */
+	static long highest(int index){
+		if (index < SUB_BUCKETS) return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long top = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	public void record(long nanos){
+		long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+		this._counts.incrementAndGet(index(value));
+		this._count.increment();
+		this._sum.add(value);
+		long max = this._max.get();
+		while (value > max && !this._max.compareAndSet(max, value))
+			max = this._max.get();
+	}
+
+	public long getCount(){ return this._count.sum(); }
+	public long getMax(){ return this._max.get(); }
+
+	public double getMean(){
+		long count = this._count.sum();
+		return count == 0 ? 0 : (double) this._sum.sum() / count;
+	}
+
+	/**
+	 * Method to get a percentile. Counts recorded while this runs may or
+	 * may not be taken into account.
+	 *
+	 * @param quantile between 0 and 1, 0.99 for the 99th percentile
+	 * @return the value at or below which that share of the recorded values
+	 * lie, within the bucket precision, or 0 when nothing was recorded
+	 */
+	public long valueAt(double quantile){
+		long total = 0;
+		for (int i = 0; i < this._counts.length(); ++i)
+			total += this._counts.get(i);
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < this._counts.length(); ++i){
+			seen += this._counts.get(i);
+			if (seen >= rank) return Math.min(highest(i), this._max.get());
+		}//end for
+		return this._max.get();
+	}
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class streams the appointment status changes of the
+ * appointment_event outbox (sql/migrations/004) to a handler, in batches
+ * and in commit order. After a batch is handled its last event is saved
+ * as the consumer's offset, so a consumer that stops picks up where it
+ * left off. A batch that was handled but not yet saved is handed over
+ * again: delivery is at least once, and handlers drop repeats by event id.
+ *
+ * The consumer sleeps on LISTEN appointment_events and reads when a
+ * transaction with events commits, or after RECHECK_MS when events were
+ * held back by an older transaction still running. It uses one
+ * connection however many events there are.
+ *
+ */
+
+public class OutboxConsumer{
+	public static final String CHANNEL = "appointment_events";
+	public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("dbproject.outbox.batchSize", 500);
+	//longest sleep between two reads without a notification
+	public static final long RECHECK_MS = Long.getLong("dbproject.outbox.recheckMs", 5000);
+
+	private static final String READ =
+		"SELECT E.txid, E.event_id, E.appnt_id, E.adate, E.old_status, E.new_status, E.created_at, "
+		+ "ARRAY(SELECT H.doctor_id FROM has_appointment H WHERE H.appt_id = E.appnt_id ORDER BY 1) "
+		+ "FROM appointment_event E WHERE (E.txid, E.event_id) > (?, ?) AND E.txid < txid_snapshot_xmin(txid_current_snapshot()) "
+		+ "ORDER BY E.txid, E.event_id LIMIT ?;";
+	private static final String LOAD_OFFSET =
+		"SELECT txid, event_id FROM appointment_event_offset WHERE consumer = ?;";
+	private static final String SAVE_OFFSET =
+		"INSERT INTO appointment_event_offset (consumer, txid, event_id) VALUES (?, ?, ?) "
+		+ "ON CONFLICT (consumer) DO UPDATE SET txid = EXCLUDED.txid, event_id = EXCLUDED.event_id, updated_at = now();";
+	//events every consumer has handled
+	private static final String PRUNE =
+		"DELETE FROM appointment_event E WHERE (E.txid, E.event_id) <= (SELECT O.txid, O.event_id FROM appointment_event_offset O ORDER BY O.txid, O.event_id LIMIT 1);";
+
+	/**
+	 * One status change of an appointment.
+	 */
+	public static class Event{
+		public final long txid;
+		public final long id;
+		public final int appntId;
+		public final LocalDate adate;
+		public final String oldStatus;
+		public final String newStatus;
+		public final Timestamp createdAt;
+		//the doctors of the appointment when the event was read
+		public final int[] doctorIds;
+
+		Event(long txid, long id, int appntId, LocalDate adate, String oldStatus, String newStatus, Timestamp createdAt, int[] doctorIds){
+			this.txid = txid;
+			this.id = id;
+			this.appntId = appntId;
+			this.adate = adate;
+			this.oldStatus = oldStatus;
+			this.newStatus = newStatus;
+			this.createdAt = createdAt;
+			this.doctorIds = doctorIds;
+		}
+
+		public String toJson(){
+			StringBuilder sb = new StringBuilder(128);
+			sb.append("{\"event_id\":").append(this.id)
+				.append(",\"appnt_id\":").append(this.appntId)
+				.append(",\"adate\":\"").append(this.adate).append('"')
+				.append(",\"old_status\":").append(this.oldStatus == null ? "null" : "\"" + this.oldStatus + "\"")
+				.append(",\"new_status\":").append(this.newStatus == null ? "null" : "\"" + this.newStatus + "\"")
+				.append(",\"created_at\":\"").append(this.createdAt.toInstant()).append('"')
+				.append(",\"doctor_ids\":[");
+			for (int i = 0; i < this.doctorIds.length; ++i){
+				if (i > 0) sb.append(',');
+				sb.append(this.doctorIds[i]);
+			}//end for
+			return sb.append("]}").toString();
+		}
+	}
+
+	/**
+	 * Where the events go.
+	 */
+	public interface Handler{
+		/**
+		 * Method to take a batch of events, oldest first. When it throws, the
+		 * same events are handed over again.
+		 */
+		void handle(List<Event> events) throws Exception;
+	}
+
+	private final ConnectionPool _pool;
+	private final String _name;
+	private final int _batchSize;
+	private final Handler _handler;
+	private final boolean _prune;
+
+	private volatile boolean _closed = false;
+	//the offset, the last event handled
+	private long _txid = 0;
+	private volatile long _eventId = 0;
+	private volatile long _delivered = 0;
+	private volatile long _batches = 0;
+
+	/**
+	 * @param name the consumer, each name has its own offset
+	 * @param prune whether to delete the events every consumer has handled
+	 */
+	public OutboxConsumer(ConnectionPool pool, String name, int batchSize, Handler handler, boolean prune){
+		this._pool = pool;
+		this._name = name;
+		this._batchSize = batchSize;
+		this._handler = handler;
+		this._prune = prune;
+	}
+
+	/**
+	 * Method to deliver events until close() is called. When the connection
+	 * breaks or the handler throws, it waits and carries on from the saved
+	 * offset.
+	 */
+	public void run(){
+		while (!this._closed){
+			Connection conn = null;
+			try{
+				conn = this._pool.openDedicated();
+				Statement stmt = conn.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				stmt.close();
+				consume(conn);
+			}catch (Exception e){
+				if (this._closed) break;
+				System.err.println("Outbox consumer " + this._name + ": " + e.getMessage());
+				try{
+					Thread.sleep(5000);
+				}catch (InterruptedException ie){
+					break;
+				}//end try
+			}finally{
+				if (conn != null){
+					try{
+						conn.close();
+					}catch (SQLException e){
+						// ignored.
+					}//end try
+				}//end if
+			}
+		}//end while
+	}
+
+	private void consume(Connection conn) throws Exception {
+		PreparedStatement read = conn.prepareStatement(READ);
+		PreparedStatement save = conn.prepareStatement(SAVE_OFFSET);
+		PreparedStatement load = conn.prepareStatement(LOAD_OFFSET);
+		load.setString(1, this._name);
+		ResultSet rs = load.executeQuery();
+		//a new consumer starts at the first event still kept
+		this._txid = 0;
+		this._eventId = 0;
+		if (rs.next()){
+			this._txid = rs.getLong(1);
+			this._eventId = rs.getLong(2);
+		}//end if
+		rs.close();
+		load.close();
+
+		PGConnection pgconn = conn.unwrap(PGConnection.class);
+		while (!this._closed){
+			List<Event> batch = read(read);
+			if (!batch.isEmpty()){
+				this._handler.handle(batch);
+				Event last = batch.get(batch.size() - 1);
+				save.setString(1, this._name);
+				save.setLong(2, last.txid);
+				save.setLong(3, last.id);
+				save.executeUpdate();
+				this._txid = last.txid;
+				this._eventId = last.id;
+				this._delivered += batch.size();
+				this._batches++;
+				//a full batch means more may be waiting already
+				if (batch.size() == this._batchSize) continue;
+			}else if (this._prune){
+				Statement stmt = conn.createStatement();
+				stmt.executeUpdate(PRUNE);
+				stmt.close();
+			}//end if
+			//wakes up on the first notification, and drops the others queued with it
+			pgconn.getNotifications((int) RECHECK_MS);
+		}//end while
+	}
+
+	private List<Event> read(PreparedStatement read) throws SQLException {
+		read.setLong(1, this._txid);
+		read.setLong(2, this._eventId);
+		read.setInt(3, this._batchSize);
+		List<Event> batch = new ArrayList<Event>();
+		ResultSet rs = read.executeQuery();
+		while (rs.next()){
+			Array array = rs.getArray(8);
+			Integer[] doctors = (Integer[]) array.getArray();
+			int[] doctorIds = new int[doctors.length];
+			for (int i = 0; i < doctors.length; ++i) doctorIds[i] = doctors[i];
+			array.free();
+			batch.add(new Event(rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getDate(4).toLocalDate(),
+				rs.getString(5), rs.getString(6), rs.getTimestamp(7), doctorIds));
+		}//end while
+		rs.close();
+		return batch;
+	}
+
+	public String stats(){
+		return String.format("outbox consumer %s: %d events in %d batches, at event %d", this._name, this._delivered, this._batches, this._eventId);
+	}
+
+	public void close(){
+		this._closed = true;
+	}
+
+	/**
+	 * Writes the events to standard output as JSON lines, e.g. to pipe them
+	 * into another system.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + OutboxConsumer.class.getName()
+				+ " <dbname> <port> <user> [consumer name] [batch size]");
+			return;
+		}//end if
+		String name = args.length > 3 ? args[3] : "stdout";
+		int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_BATCH_SIZE;
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = new ConnectionPool(url, args[2], "", 0, 1, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MS,
+			ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, ConnectionPool.DEFAULT_HEALTH_CHECK_MS, ConnectionPool.DEFAULT_VALIDATE_AFTER_MS);
+		final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		final OutboxConsumer consumer = new OutboxConsumer(pool, name, batchSize, new Handler(){
+			public void handle(List<Event> events) throws IOException {
+				for (Event event : events)
+					out.write(event.toJson() + "\n");
+				//the offset is only saved once the batch is out of this process
+				out.flush();
+			}
+		}, Boolean.getBoolean("dbproject.outbox.prune"));
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+			public void run(){
+				consumer.close();
+				System.err.println(consumer.stats());
+			}
+		}));
+		try{
+			consumer.run();
+		}finally{
+			pool.close();
+		}
+	}
+}
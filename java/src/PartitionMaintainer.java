@@ -0,0 +1,181 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the partitions of Appointment, which sql/create.sql
+ * partitions by month of adate. Each run creates the partitions of the
+ * coming months, moves rows that landed in appointment_default into
+ * partitions of their own and, when an archive age is set, archives the
+ * older appointments: they become past (PA) and the months of every year
+ * before the cut-off are folded into one appointment_pa_YYYY partition.
+ *
+ * Run once by java/partitions.sh, e.g. from cron, or every
+ * dbproject.partitions.maintainMs by DBproject. Each step is its own
+ * transaction, so a failed run leaves the partitions consistent.
+ *
+ */
+
+public class PartitionMaintainer{
+	public static final int DEFAULT_MONTHS_AHEAD = Integer.getInteger("dbproject.partitions.monthsAhead", 3);
+	//appointments this many days old are archived, -1 (the default) for never
+	public static final int DEFAULT_ARCHIVE_AFTER_DAYS = Integer.getInteger("dbproject.partitions.archiveAfterDays", -1);
+
+	private final ConnectionPool _pool;
+	private final int _monthsAhead;
+	private final int _archiveAfterDays;
+	private ScheduledExecutorService _scheduler = null;
+
+	public PartitionMaintainer(ConnectionPool pool){
+		this(pool, DEFAULT_MONTHS_AHEAD, DEFAULT_ARCHIVE_AFTER_DAYS);
+	}
+
+	public PartitionMaintainer(ConnectionPool pool, int monthsAhead, int archiveAfterDays){
+		this._pool = pool;
+		this._monthsAhead = monthsAhead;
+		this._archiveAfterDays = archiveAfterDays;
+	}
+
+	/**
+	 * @return whether the database has the partitioned Appointment of sql/create.sql
+	 */
+	public static boolean isPartitioned(ConnectionPool pool) throws SQLException {
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT to_regprocedure('appointment_partition(date)') IS NOT NULL;", new Object[0]);
+			boolean partitioned = rs.next() && rs.getBoolean(1);
+			rs.close();
+			return partitioned;
+		}finally{
+			pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to create the partitions of some months ahead of a load, so
+	 * the rows go straight to their partition instead of appointment_default.
+	 *
+	 * @param months a date of each month
+	 * @return the number of partitions created
+	 */
+	public static int createPartitions(ConnectionPool pool, Collection<LocalDate> months) throws SQLException {
+		int created = 0;
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			for (LocalDate month : months){
+				ResultSet rs = DBproject.executeCached(pc, "SELECT appointment_partition(?);", new Object[] { java.sql.Date.valueOf(month) });
+				if (rs.next() && rs.getBoolean(1)) ++created;
+				rs.close();
+			}//end for
+		}finally{
+			pool.release(pc);
+		}
+		return created;
+	}
+
+	/**
+	 * Method to create the partitions of this month and the coming ones, and
+	 * of the months of the rows in appointment_default.
+	 *
+	 * @return the number of partitions created
+	 */
+	public int createPartitions() throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT appointment_partitions(?);", new Object[] { this._monthsAhead });
+			int created = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+			return created;
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to archive the appointments before a date.
+	 *
+	 * @return the number of appointments made past
+	 */
+	public long archive(LocalDate before) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT appointment_archive(?);", new Object[] { java.sql.Date.valueOf(before) });
+			long marked = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+			return marked;
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to run every step once.
+	 *
+	 * @return what was done, for the log
+	 */
+	public String run() throws SQLException {
+		long start = System.nanoTime();
+		int created = createPartitions();
+		String archived = "";
+		if (this._archiveAfterDays >= 0){
+			LocalDate before = LocalDate.now().minusDays(this._archiveAfterDays);
+			archived = String.format(", %d appointment(s) before %s archived", archive(before), before);
+		}//end if
+		return String.format("partitions: %d created%s in %.0f ms", created, archived, (System.nanoTime() - start) / 1e6);
+	}
+
+	/**
+	 * Method to run every given period on a daemon thread, the first run
+	 * right away. Failed runs are logged and retried at the next period.
+	 */
+	public synchronized void start(long periodMillis){
+		if (this._scheduler != null) return;
+		this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "partition-maintainer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this._scheduler.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					PartitionMaintainer.this.run();
+				}catch (SQLException e){
+					System.err.println("Partition maintenance failed: " + e.getMessage());
+				}//end try
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void close(){
+		if (this._scheduler != null) this._scheduler.shutdownNow();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + PartitionMaintainer.class.getName()
+				+ " <dbname> <port> <user> [months ahead] [archive after days]");
+			return;
+		}//end if
+		int monthsAhead = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MONTHS_AHEAD;
+		int archiveAfterDays = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_ARCHIVE_AFTER_DAYS;
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = new ConnectionPool(url, args[2], "", 1, 1, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MS,
+			ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, ConnectionPool.DEFAULT_HEALTH_CHECK_MS, ConnectionPool.DEFAULT_VALIDATE_AFTER_MS);
+		try{
+			if (!isPartitioned(pool)){
+				System.err.println("Appointment is not partitioned, recreate the database with sql/create.sql");
+				System.exit(1);
+			}//end if
+			System.out.println(new PartitionMaintainer(pool, monthsAhead, archiveAfterDays).run());
+		}finally{
+			pool.close();
+		}
+	}
+}
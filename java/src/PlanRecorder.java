@@ -0,0 +1,111 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class captures the plan of every query the menu runs, with
+ * EXPLAIN (ANALYZE, BUFFERS), and appends it with its timing to a log
+ * file. It keeps the fastest execution time seen per query shape and
+ * warns when a run is much slower, so plan changes that come with data
+ * growth show up.
+ *
+ * Enabled with -Ddbproject.explain=&lt;log file&gt;. ANALYZE runs the
+ * query, so with capture on each query runs twice.
+ *
+ */
+
+public class PlanRecorder{
+	//a run this many times slower than the fastest one of its shape is reported
+	public static final double REGRESSION_FACTOR = Double.parseDouble(System.getProperty("dbproject.explain.regression", "2.0"));
+
+	private final Writer _out;
+	private final Map<String, Double> _fastest = new HashMap<String, Double>();
+
+	public PlanRecorder(Writer out){
+		this._out = out;
+	}
+
+	/**
+	 * @return the recorder configured by dbproject.explain, or null when capture is off
+	 */
+	public static PlanRecorder fromProperties() throws IOException {
+		String path = System.getProperty("dbproject.explain");
+		if (path == null) return null;
+		return new PlanRecorder(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Method to explain one query on the given connection and log the plan.
+	 * Failures are logged and never reach the caller.
+	 *
+	 * @param pc the connection the query is about to run on
+	 * @param query the query, with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 */
+	public void record(ConnectionPool.PooledConnection pc, String query, Object[] params){
+		StringBuilder plan = new StringBuilder();
+		double executionMs = -1;
+		try{
+			PreparedStatement stmt = pc.connection().prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + query);
+			try{
+				for (int i = 0; i < params.length; ++i)
+					stmt.setObject(i + 1, params[i]);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()){
+					String line = rs.getString(1);
+					plan.append(line).append('\n');
+					//'Execution Time' from 9.4 on, 'Total runtime' before
+					int colon = line.indexOf(':');
+					if (colon > 0 && (line.startsWith("Execution Time") || line.startsWith("Total runtime")))
+						executionMs = Double.parseDouble(line.substring(colon + 1).replace("ms", "").trim());
+				}//end while
+				rs.close();
+			}finally{
+				stmt.close();
+			}
+		}catch (SQLException | NumberFormatException e){
+			plan.append("EXPLAIN failed: ").append(e.getMessage()).append('\n');
+		}//end try
+
+		String regression = null;
+		synchronized (this){
+			Double fastest = this._fastest.get(query);
+			if (executionMs >= 0){
+				if (fastest == null || executionMs < fastest) this._fastest.put(query, executionMs);
+				else if (executionMs > fastest * REGRESSION_FACTOR)
+					regression = String.format("%.3f ms, fastest so far %.3f ms", executionMs, fastest);
+			}//end if
+			try{
+				this._out.write("--- " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
+					+ String.format(" %.3f ms", executionMs) + (regression != null ? " REGRESSION" : "") + "\n");
+				this._out.write(query + "\n");
+				if (params.length > 0) this._out.write("params: " + Arrays.toString(params) + "\n");
+				this._out.write(plan.toString());
+				this._out.flush();
+			}catch (IOException e){
+				System.err.println("Unable to write the plan log: " + e.getMessage());
+			}//end try
+		}
+		if (regression != null)
+			System.err.println("Slower plan for query (" + regression + "): " + query);
+	}
+
+	public synchronized void close(){
+		try{
+			this._out.close();
+		}catch (IOException e){
+			// ignored.
+		}//end try
+	}
+}
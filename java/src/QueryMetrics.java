@@ -0,0 +1,231 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class keeps the metrics of every SQL call DBproject makes, per
+ * query shape (the statement text with its '?' placeholders): a latency
+ * histogram, the rows and bytes fetched, the time spent waiting for a
+ * pooled connection and the number of errors. Recording a call allocates
+ * nothing once its shape has been seen.
+ *
+ * Each shape is registered as the MXBean dbproject:type=Query,id=&lt;n&gt;.
+ * The table of all shapes is written every dbproject.metrics.dumpMs
+ * (0, the default, for never), and calls slower than
+ * dbproject.metrics.slowMs go to the slow query log with their params.
+ *
+ */
+
+public class QueryMetrics{
+	public static final long DEFAULT_SLOW_MS = Long.getLong("dbproject.metrics.slowMs", 500);
+	public static final long DEFAULT_DUMP_MS = Long.getLong("dbproject.metrics.dumpMs", 0);
+	public static final boolean JMX = Boolean.parseBoolean(System.getProperty("dbproject.metrics.jmx", "true"));
+
+	/**
+	 * The JMX view of one query shape.
+	 */
+	public interface ShapeMXBean{
+		String getQuery();
+		long getCalls();
+		long getErrors();
+		long getRows();
+		long getBytes();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP99Millis();
+		double getP999Millis();
+		double getMaxMillis();
+		double getMeanWaitMillis();
+	}
+
+	/**
+	 * The metrics of one query shape.
+	 */
+	public static class Shape implements ShapeMXBean{
+		final String query;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder waitNanos = new LongAdder();
+		ObjectName name = null;
+
+		Shape(String query){
+			this.query = query;
+		}
+
+		public String getQuery(){ return this.query; }
+		public long getCalls(){ return this.latency.getCount(); }
+		public long getErrors(){ return this.errors.sum(); }
+		public long getRows(){ return this.rows.sum(); }
+		public long getBytes(){ return this.bytes.sum(); }
+		public double getMeanMillis(){ return this.latency.getMean() / 1e6; }
+		public double getP50Millis(){ return this.latency.valueAt(0.50) / 1e6; }
+		public double getP99Millis(){ return this.latency.valueAt(0.99) / 1e6; }
+		public double getP999Millis(){ return this.latency.valueAt(0.999) / 1e6; }
+		public double getMaxMillis(){ return this.latency.getMax() / 1e6; }
+
+		public double getMeanWaitMillis(){
+			long calls = getCalls();
+			return calls == 0 ? 0 : this.waitNanos.sum() / 1e6 / calls;
+		}
+	}
+
+	//JMX names are unique per JVM, several DBproject instances may share it
+	private static final AtomicInteger _ids = new AtomicInteger();
+
+	private final ConcurrentHashMap<String, Shape> _shapes = new ConcurrentHashMap<String, Shape>();
+	private final long _slowNanos;
+	private final PrintWriter _slowLog;
+	private final PrintWriter _dumpOut;
+	private final ScheduledExecutorService _dumper;
+
+	public QueryMetrics() throws IOException {
+		this(DEFAULT_SLOW_MS, DEFAULT_DUMP_MS);
+	}
+
+	public QueryMetrics(long slowMillis, long dumpMillis) throws IOException {
+		this._slowNanos = slowMillis * 1000000L;
+		this._slowLog = open(System.getProperty("dbproject.metrics.slowLog"));
+		this._dumpOut = open(System.getProperty("dbproject.metrics.dumpFile"));
+		if (dumpMillis > 0){
+			this._dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "query-metrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this._dumper.scheduleWithFixedDelay(new Runnable(){
+				public void run(){
+					synchronized (_dumpOut){
+						_dumpOut.println("--- " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+						_dumpOut.print(dump());
+						_dumpOut.flush();
+					}
+				}
+			}, dumpMillis, dumpMillis, TimeUnit.MILLISECONDS);
+		}else{
+			this._dumper = null;
+		}//end if
+	}
+
+	//a log file appended to, or standard error when no path is given
+	private static PrintWriter open(String path) throws IOException {
+		if (path == null || path.equals("-")) return new PrintWriter(System.err, true);
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), true);
+	}
+
+	/**
+	 * @return the metrics of a query shape, created on first use
+	 */
+	public Shape shape(String query){
+		Shape shape = this._shapes.get(query);
+		if (shape == null){
+			Shape fresh = new Shape(query);
+			shape = this._shapes.putIfAbsent(query, fresh);
+			if (shape == null){
+				shape = fresh;
+				register(shape);
+			}//end if
+		}//end if
+		return shape;
+	}
+
+	private void register(Shape shape){
+		if (!JMX) return;
+		try{
+			ObjectName name = new ObjectName("dbproject:type=Query,id=" + _ids.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(shape, name);
+			shape.name = name;
+		}catch (JMException e){
+			//JMX is not available, the shape is still in dump()
+		}//end try
+	}
+
+	/**
+	 * Method to record one call.
+	 *
+	 * @param query the statement, its shape
+	 * @param waitNanos the time spent waiting for a connection
+	 * @param nanos the time of the whole call, the wait included
+	 * @param rows the rows returned or changed
+	 * @param bytes the approximate size of the rows returned
+	 * @param failed whether the call threw
+	 * @param params the values bound to the statement, logged when the call was slow
+	 */
+	public void record(String query, long waitNanos, long nanos, long rows, long bytes, boolean failed, Object[] params){
+		Shape shape = shape(query);
+		shape.latency.record(nanos);
+		shape.waitNanos.add(waitNanos);
+		shape.rows.add(rows);
+		shape.bytes.add(bytes);
+		if (failed) shape.errors.increment();
+		if (nanos >= this._slowNanos) logSlow(query, waitNanos, nanos, rows, failed, params);
+	}
+
+	private void logSlow(String query, long waitNanos, long nanos, long rows, boolean failed, Object[] params){
+		String line = String.format("%s slow query: %.1f ms (%.1f ms waiting for a connection), %d row(s)%s: %s %s",
+			new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()), nanos / 1e6, waitNanos / 1e6, rows,
+			failed ? ", failed" : "", query, params.length > 0 ? Arrays.toString(params) : "");
+		synchronized (this._slowLog){
+			this._slowLog.println(line);
+		}
+	}
+
+	/**
+	 * @return one line per query shape, most called first
+	 */
+	public String dump(){
+		List<Shape> shapes = new ArrayList<Shape>(this._shapes.values());
+		long[] calls = new long[shapes.size()];
+		for (int i = 0; i < calls.length; ++i) calls[i] = shapes.get(i).getCalls();
+		Integer[] order = new Integer[shapes.size()];
+		for (int i = 0; i < order.length; ++i) order[i] = i;
+		final long[] byCalls = calls;
+		Arrays.sort(order, (a, b) -> Long.compare(byCalls[b], byCalls[a]));
+
+		StringBuilder out = new StringBuilder(String.format("%8s %6s %10s %12s %9s %9s %9s %9s %9s  %s%n",
+			"calls", "errors", "rows", "bytes", "mean ms", "p50 ms", "p99 ms", "max ms", "wait ms", "query"));
+		for (int i : order){
+			Shape s = shapes.get(i);
+			out.append(String.format("%8d %6d %10d %12d %9.2f %9.2f %9.2f %9.2f %9.2f  %s%n", calls[i], s.getErrors(), s.getRows(), s.getBytes(),
+				s.getMeanMillis(), s.getP50Millis(), s.getP99Millis(), s.getMaxMillis(), s.getMeanWaitMillis(), s.query));
+		}//end for
+		return out.toString();
+	}
+
+	public void close(){
+		if (this._dumper != null) this._dumper.shutdownNow();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Shape shape : this._shapes.values()){
+			if (shape.name == null) continue;
+			try{
+				server.unregisterMBean(shape.name);
+			}catch (JMException e){
+				// ignored.
+			}//end try
+		}//end for
+		this._slowLog.flush();
+		this._dumpOut.flush();
+	}
+}
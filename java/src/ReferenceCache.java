@@ -0,0 +1,491 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class is a read-through cache of the reference tables (Doctor,
+ * Department, Hospital, Staff and request_maintenance), which change far
+ * less often than the appointment tables. Rows are loaded on first use
+ * and kept in size bounded LRU maps with a time to live. The triggers in
+ * sql/create.sql send a NOTIFY on 'reference_changed' for every changed
+ * row, and a listener thread drops the matching entries. Every drop bumps
+ * a generation, and a row loaded on a miss is only kept when no drop
+ * happened while it was loaded, so a change can not be covered by the
+ * stale row of a load that was already running.
+ *
+ */
+
+public class ReferenceCache{
+	public static final int DEFAULT_SIZE = Integer.getInteger("dbproject.refcache.size", 10000);
+	public static final long DEFAULT_TTL_MS = Long.getLong("dbproject.refcache.ttlMs", 300000);
+	public static final String CHANNEL = "reference_changed";
+
+	public static class Doctor{
+		public final int id;
+		public final String name;
+		public final String specialty;
+		public final int did;
+
+		Doctor(int id, String name, String specialty, int did){
+			this.id = id;
+			this.name = name;
+			this.specialty = specialty;
+			this.did = did;
+		}
+	}
+
+	public static class Department{
+		public final int id;
+		public final String name;
+		public final int hid;
+
+		Department(int id, String name, int hid){
+			this.id = id;
+			this.name = name;
+			this.hid = hid;
+		}
+	}
+
+	public static class Staff{
+		public final int id;
+		public final String name;
+		public final int hid;
+
+		Staff(int id, String name, int hid){
+			this.id = id;
+			this.name = name;
+			this.hid = hid;
+		}
+	}
+
+	/**
+	 * One request_maintenance row: a doctor of a department and the staff
+	 * member that keeps the schedule.
+	 */
+	public static class Maintenance{
+		public final int patientPerHour;
+		public final String deptName;
+		public final String timeSlot;
+		public final int did;
+		public final int sid;
+
+		Maintenance(int patientPerHour, String deptName, String timeSlot, int did, int sid){
+			this.patientPerHour = patientPerHour;
+			this.deptName = deptName;
+			this.timeSlot = timeSlot;
+			this.did = did;
+			this.sid = sid;
+		}
+	}
+
+	/**
+	 * String keyed counterpart of IntLruCache, for lookups by name.
+	 */
+	private static class NameCache<V>{
+		private final long _ttlNanos;
+		private final LinkedHashMap<String, Object[]> _map;
+
+		NameCache(final int capacity, long ttlMillis){
+			this._ttlNanos = ttlMillis * 1000000L;
+			this._map = new LinkedHashMap<String, Object[]>(16, 0.75f, true){
+				protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest){
+					return size() > capacity;
+				}
+			};
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(String key){
+			Object[] entry = this._map.get(key);
+			if (entry == null) return null;
+			if (this._ttlNanos > 0 && System.nanoTime() - (Long) entry[1] > this._ttlNanos){
+				this._map.remove(key);
+				return null;
+			}//end if
+			return (V) entry[0];
+		}
+
+		synchronized void put(String key, V value){
+			this._map.put(key, new Object[] { value, System.nanoTime() });
+		}
+
+		synchronized void remove(String key){ this._map.remove(key); }
+		synchronized void clear(){ this._map.clear(); }
+	}
+
+	/**
+	 * Visitor that joins rows ending in a doctor id with the cached
+	 * request_maintenance rows of one department, and hands the joined rows
+	 * on. This is the in-memory side of the option 6 join.
+	 */
+	public static class MaintenanceJoin implements RowVisitor{
+		private final Maintenance[] _rows;
+		private final RowVisitor _out;
+		private Row _joined = null;
+		private int _count = 0;
+
+		public MaintenanceJoin(Maintenance[] rows, RowVisitor out){
+			this._rows = rows;
+			this._out = out;
+		}
+
+		public boolean visit(Row row) throws SQLException {
+			int numCol = row.getColumnCount();
+			if (this._joined == null){
+				String[] names = new String[numCol + 5];
+				int[] kinds = new int[numCol + 5];
+				for (int i = 0; i < numCol; ++i){
+					names[i] = row.getColumnName(i + 1);
+					kinds[i] = row.getKind(i + 1);
+				}//end for
+				String[] extra = { "patient_per_hour", "dept_name", "time_slot", "did", "sid" };
+				int[] extraKinds = { Row.LONG, Row.TEXT, Row.TEXT, Row.LONG, Row.LONG };
+				System.arraycopy(extra, 0, names, numCol, 5);
+				System.arraycopy(extraKinds, 0, kinds, numCol, 5);
+				this._joined = new Row(names, kinds);
+			}//end if
+			int doctor = row.getInt(numCol);
+			for (Maintenance m : this._rows){
+				if (m.did != doctor) continue;
+				for (int i = 1; i <= numCol; ++i) this._joined.copy(row, i, i);
+				this._joined.setLong(numCol + 1, m.patientPerHour);
+				this._joined.setString(numCol + 2, m.deptName);
+				this._joined.setString(numCol + 3, m.timeSlot);
+				this._joined.setLong(numCol + 4, m.did);
+				this._joined.setLong(numCol + 5, m.sid);
+				++this._count;
+				if (!this._out.visit(this._joined)) return false;
+			}//end for
+			return true;
+		}
+
+		/**
+		 * @return the number of joined rows handed on
+		 */
+		public int getCount(){ return this._count; }
+	}
+
+	/**
+	 * @return the doctor ids of the rows, as a postgres array literal for CAST(? AS int[])
+	 */
+	public static String doctorIds(Maintenance[] rows){
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < rows.length; ++i){
+			if (i > 0) sb.append(',');
+			sb.append(rows[i].did);
+		}//end for
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * @return the distinct doctor ids of the rows
+	 */
+	public static int[] doctors(Maintenance[] rows){
+		int[] ids = new int[rows.length];
+		for (int i = 0; i < rows.length; ++i) ids[i] = rows[i].did;
+		Arrays.sort(ids);
+		int n = 0;
+		for (int i = 0; i < ids.length; ++i)
+			if (n == 0 || ids[n - 1] != ids[i]) ids[n++] = ids[i];
+		return Arrays.copyOf(ids, n);
+	}
+
+	private final ConnectionPool _pool;
+	private final IntLruCache<Doctor> _doctors;
+	private final IntLruCache<Department> _departments;
+	private final IntLruCache<String> _hospitals;
+	private final IntLruCache<Staff> _staff;
+	private final NameCache<Maintenance[]> _maintenance;
+	private final NameCache<int[]> _departmentIds;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _invalidations = new AtomicLong();
+	//bumped by every drop, written under _generationLock so a put can check it and store atomically
+	private final Object _generationLock = new Object();
+	private volatile long _generation = 0;
+
+	private volatile boolean _closed = false;
+	private Thread _listener = null;
+
+	public ReferenceCache(ConnectionPool pool){
+		this(pool, DEFAULT_SIZE, DEFAULT_TTL_MS);
+	}
+
+	public ReferenceCache(ConnectionPool pool, int size, long ttlMillis){
+		this._pool = pool;
+		this._doctors = new IntLruCache<Doctor>(size, ttlMillis);
+		this._departments = new IntLruCache<Department>(size, ttlMillis);
+		this._hospitals = new IntLruCache<String>(size, ttlMillis);
+		this._staff = new IntLruCache<Staff>(size, ttlMillis);
+		this._maintenance = new NameCache<Maintenance[]>(size, ttlMillis);
+		this._departmentIds = new NameCache<int[]>(size, ttlMillis);
+	}
+
+	/**
+	 * @return the doctor, or null when there is none with that id
+	 */
+	public Doctor getDoctor(int id) throws SQLException {
+		Doctor doctor = this._doctors.get(id);
+		if (hit(doctor)) return doctor;
+		long generation = this._generation;
+		List<List<String>> rows = query("SELECT doctor_ID, name, specialty, did FROM Doctor WHERE doctor_ID = ?;", id);
+		if (rows.isEmpty()) return null;
+		List<String> r = rows.get(0);
+		doctor = new Doctor(id, r.get(1), r.get(2), Integer.parseInt(r.get(3)));
+		put(this._doctors, id, doctor, generation);
+		return doctor;
+	}
+
+	/**
+	 * @return the department, or null when there is none with that id
+	 */
+	public Department getDepartment(int id) throws SQLException {
+		Department dept = this._departments.get(id);
+		if (hit(dept)) return dept;
+		long generation = this._generation;
+		List<List<String>> rows = query("SELECT dept_ID, name, hid FROM Department WHERE dept_ID = ?;", id);
+		if (rows.isEmpty()) return null;
+		List<String> r = rows.get(0);
+		dept = new Department(id, r.get(1), Integer.parseInt(r.get(2)));
+		put(this._departments, id, dept, generation);
+		return dept;
+	}
+
+	/**
+	 * @return the name of the hospital, or null when there is none with that id
+	 */
+	public String getHospitalName(int id) throws SQLException {
+		String name = this._hospitals.get(id);
+		if (hit(name)) return name;
+		long generation = this._generation;
+		List<List<String>> rows = query("SELECT name FROM Hospital WHERE hospital_ID = ?;", id);
+		if (rows.isEmpty()) return null;
+		name = rows.get(0).get(0);
+		put(this._hospitals, id, name, generation);
+		return name;
+	}
+
+	/**
+	 * @return the staff member, or null when there is none with that id
+	 */
+	public Staff getStaff(int id) throws SQLException {
+		Staff staff = this._staff.get(id);
+		if (hit(staff)) return staff;
+		long generation = this._generation;
+		List<List<String>> rows = query("SELECT staff_ID, name, hid FROM Staff WHERE staff_ID = ?;", id);
+		if (rows.isEmpty()) return null;
+		List<String> r = rows.get(0);
+		staff = new Staff(id, r.get(1), Integer.parseInt(r.get(2)));
+		put(this._staff, id, staff, generation);
+		return staff;
+	}
+
+	/**
+	 * @param name a department name, the same name is used by several hospitals
+	 * @return the ids of the departments with that name, possibly empty
+	 */
+	public int[] getDepartmentIds(String name) throws SQLException {
+		int[] ids = this._departmentIds.get(name);
+		if (hit(ids)) return ids;
+		long generation = this._generation;
+		List<List<String>> rows = query("SELECT dept_ID FROM Department WHERE name = ?;", name);
+		ids = new int[rows.size()];
+		for (int i = 0; i < ids.length; ++i) ids[i] = Integer.parseInt(rows.get(i).get(0));
+		put(this._departmentIds, name, ids, generation);
+		return ids;
+	}
+
+	/**
+	 * @param deptName the dept_name of request_maintenance
+	 * @return the request_maintenance rows of that department, possibly empty
+	 */
+	public Maintenance[] getMaintenance(String deptName) throws SQLException {
+		Maintenance[] rows = this._maintenance.get(deptName);
+		if (hit(rows)) return rows;
+		long generation = this._generation;
+		List<List<String>> result = query("SELECT patient_per_hour, dept_name, time_slot, did, sid FROM request_maintenance WHERE dept_name = ?;", deptName);
+		rows = new Maintenance[result.size()];
+		for (int i = 0; i < rows.length; ++i){
+			List<String> r = result.get(i);
+			rows[i] = new Maintenance(Integer.parseInt(r.get(0)), r.get(1), r.get(2), Integer.parseInt(r.get(3)), Integer.parseInt(r.get(4)));
+		}//end for
+		put(this._maintenance, deptName, rows, generation);
+		return rows;
+	}
+
+	private boolean hit(Object value){
+		if (value != null){
+			this._hits.incrementAndGet();
+			return true;
+		}//end if
+		this._misses.incrementAndGet();
+		return false;
+	}
+
+	//keeps a loaded row unless an entry was dropped since the load began
+	private <V> void put(IntLruCache<V> cache, int key, V value, long generation){
+		synchronized (this._generationLock){
+			if (generation == this._generation) cache.put(key, value);
+		}
+	}
+
+	private <V> void put(NameCache<V> cache, String key, V value, long generation){
+		synchronized (this._generationLock){
+			if (generation == this._generation) cache.put(key, value);
+		}
+	}
+
+	private List<List<String>> query(String sql, Object param) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, sql, new Object[] { param });
+			int numCol = rs.getMetaData().getColumnCount();
+			List<List<String>> rows = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> row = new ArrayList<String>(numCol);
+				for (int i = 1; i <= numCol; ++i) row.add(rs.getString(i));
+				rows.add(row);
+			}//end while
+			rs.close();
+			return rows;
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to drop the cached entry for one changed row.
+	 *
+	 * @param payload the NOTIFY payload, '&lt;table&gt;:&lt;key&gt;'
+	 */
+	void invalidate(String payload){
+		this._invalidations.incrementAndGet();
+		int colon = payload.indexOf(':');
+		String table = colon < 0 ? payload : payload.substring(0, colon);
+		String key = colon < 0 ? null : payload.substring(colon + 1);
+		synchronized (this._generationLock){
+			++this._generation;
+			drop(table, key);
+		}
+	}
+
+	private void drop(String table, String key){
+		try{
+			if (table.equals("request_maintenance")){
+				if (key != null) this._maintenance.remove(key);
+				else this._maintenance.clear();
+				return;
+			}//end if
+			IntLruCache<?> cache = null;
+			if (table.equals("doctor")) cache = this._doctors;
+			else if (table.equals("hospital")) cache = this._hospitals;
+			else if (table.equals("staff")) cache = this._staff;
+			else if (table.equals("department")){
+				cache = this._departments;
+				//the old name of the department is not in the payload
+				this._departmentIds.clear();
+			}//end if
+			if (cache == null) return;
+			if (key != null) cache.remove(Integer.parseInt(key));
+			else cache.clear();
+		}catch (NumberFormatException e){
+			clear();
+		}//end try
+	}
+
+	/**
+	 * Method to drop every cached entry.
+	 */
+	public void clear(){
+		synchronized (this._generationLock){
+			++this._generation;
+			this._doctors.clear();
+			this._departments.clear();
+			this._hospitals.clear();
+			this._staff.clear();
+			this._maintenance.clear();
+			this._departmentIds.clear();
+		}
+	}
+
+	/**
+	 * Method to start the thread that listens for changes of the reference
+	 * tables. When its connection breaks it clears the cache, since changes
+	 * may have been missed, and reconnects.
+	 */
+	public synchronized void startListener(){
+		if (this._listener != null) return;
+		this._listener = new Thread(new Runnable(){
+			public void run(){ listen(); }
+		}, "reference-cache-listener");
+		this._listener.setDaemon(true);
+		this._listener.start();
+	}
+
+	private void listen(){
+		while (!this._closed){
+			Connection conn = null;
+			try{
+				conn = this._pool.openDedicated();
+				Statement stmt = conn.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				stmt.close();
+				//anything cached before the LISTEN may already be stale
+				clear();
+				PGConnection pgconn = conn.unwrap(PGConnection.class);
+				while (!this._closed){
+					PGNotification[] notifications = pgconn.getNotifications(1000);
+					if (notifications == null) continue;
+					for (PGNotification n : notifications)
+						invalidate(n.getParameter());
+				}//end while
+			}catch (SQLException e){
+				if (this._closed) break;
+				clear();
+				System.err.println("Reference cache listener: " + e.getMessage());
+				try{
+					Thread.sleep(5000);
+				}catch (InterruptedException ie){
+					break;
+				}//end try
+			}finally{
+				if (conn != null){
+					try{
+						conn.close();
+					}catch (SQLException e){
+						// ignored.
+					}//end try
+				}//end if
+			}
+		}//end while
+	}
+
+	public long getHits(){ return this._hits.get(); }
+	public long getMisses(){ return this._misses.get(); }
+
+	public String stats(){
+		long hits = this._hits.get(), misses = this._misses.get();
+		return String.format("reference cache: %d hits, %d misses, hit rate %.1f%%, %d invalidations",
+			hits, misses, hits + misses == 0 ? 0.0 : hits * 100.0 / (hits + misses), this._invalidations.get());
+	}
+
+	public void close(){
+		this._closed = true;
+		Thread listener;
+		synchronized (this){
+			listener = this._listener;
+		}
+		if (listener != null) listener.interrupt();
+	}
+}
@@ -0,0 +1,468 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the hospital reports over several connections at once.
+ * A report is split into ranges of one key column, e.g. searches.pid, on a
+ * fork-join pool: a range is cut in halves until it is at most 1/chunks of
+ * the keys, and each chunk aggregates its range in one query on a pooled
+ * connection. The chunk sums are merged into the report's totals as they
+ * come in, so the totals can be read at any time while the report runs,
+ * and a report can be cancelled, which also cancels its running queries.
+ *
+ * The reports only add up counts, so merging partial sums is exact. A
+ * report that counts distinct values is split on the column they are
+ * distinct by.
+ *
+ */
+
+public class ReportEngine{
+	public static final int DEFAULT_CHUNKS = Integer.getInteger("dbproject.report.chunks", 64);
+	public static final int DEFAULT_PARALLELISM = Integer.getInteger("dbproject.report.parallelism",
+		Math.min(Runtime.getRuntime().availableProcessors(), ConnectionPool.DEFAULT_MAX_SIZE));
+
+	/**
+	 * One report: the column it is split on, the query of one chunk, which
+	 * takes the first key and the key after the last, and how the rows of
+	 * the chunk are added up and the totals printed.
+	 */
+	public static abstract class Report{
+		final String name;
+		final String description;
+		final String table;
+		final String column;
+		final String sql;
+		final String[] names;
+		final int[] kinds;
+		//the number of sums kept per key
+		final int width;
+
+		Report(String name, String description, String table, String column, String sql, String[] names, int[] kinds, int width){
+			this.name = name;
+			this.description = description;
+			this.table = table;
+			this.column = column;
+			this.sql = sql;
+			this.names = names;
+			this.kinds = kinds;
+			this.width = width;
+		}
+
+		/**
+		 * Method to add one row of a chunk to the sums of its key.
+		 */
+		abstract void add(ResultSet rs, Map<Key, long[]> sums) throws SQLException;
+
+		/**
+		 * Method to set the columns of one row of the report.
+		 */
+		abstract void fill(Key key, long[] sums, Row row, ReferenceCache reference) throws SQLException;
+
+		long[] sums(Map<Key, long[]> sums, long... key){
+			Key k = new Key(key);
+			long[] s = sums.get(k);
+			if (s == null) sums.put(k, s = new long[this.width]);
+			return s;
+		}
+
+		public String getName(){ return this.name; }
+		public String getDescription(){ return this.description; }
+	}
+
+	/**
+	 * The group by columns of a report row, all ids or dates.
+	 */
+	static final class Key implements Comparable<Key>{
+		final long[] values;
+
+		Key(long[] values){
+			this.values = values;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			return o instanceof Key && Arrays.equals(this.values, ((Key) o).values);
+		}
+
+		@Override
+		public int hashCode(){
+			return Arrays.hashCode(this.values);
+		}
+
+		public int compareTo(Key o){
+			for (int i = 0; i < this.values.length; ++i){
+				int c = Long.compare(this.values[i], o.values[i]);
+				if (c != 0) return c;
+			}//end for
+			return 0;
+		}
+	}
+
+	private static int status(String status){
+		if (status == null) return -1;
+		switch (status){
+			case "AC": return 0;
+			case "AV": return 1;
+			case "WL": return 2;
+			case "PA": return 3;
+			default: return -1;
+		}
+	}
+
+	private static String name(String name){
+		return name == null ? "" : name;
+	}
+
+	public static final Report WEEKLY_APPOINTMENTS = new Report("weekly",
+		"appointments per hospital, department and week, by status",
+		"has_appointment", "appt_id",
+		"SELECT P.hid, P.dept_ID, CAST(date_trunc('week', A.adate) AS DATE), A.status, count(*) "
+		+ "FROM has_appointment H JOIN Appointment A ON A.appnt_ID = H.appt_id JOIN Doctor D ON D.doctor_ID = H.doctor_id JOIN Department P ON P.dept_ID = D.did "
+		+ "WHERE H.appt_id >= ? AND H.appt_id < ? GROUP BY 1, 2, 3, 4;",
+		new String[] { "hospital_id", "hospital", "dept_id", "department", "week", "appointments", "active", "available", "waitlisted", "past" },
+		new int[] { Row.LONG, Row.TEXT, Row.LONG, Row.TEXT, Row.DATE, Row.LONG, Row.LONG, Row.LONG, Row.LONG, Row.LONG }, 5){
+		void add(ResultSet rs, Map<Key, long[]> sums) throws SQLException {
+			long[] s = sums(sums, rs.getLong(1), rs.getLong(2), rs.getDate(3).toLocalDate().toEpochDay());
+			long count = rs.getLong(5);
+			s[0] += count;
+			int status = status(rs.getString(4));
+			if (status >= 0) s[1 + status] += count;
+		}
+
+		void fill(Key key, long[] sums, Row row, ReferenceCache reference) throws SQLException {
+			ReferenceCache.Department dept = reference.getDepartment((int) key.values[1]);
+			row.setLong(1, key.values[0]);
+			row.setString(2, name(reference.getHospitalName((int) key.values[0])));
+			row.setLong(3, key.values[1]);
+			row.setString(4, dept == null ? "" : dept.name);
+			row.setLong(5, key.values[2]);
+			for (int i = 0; i < sums.length; ++i) row.setLong(6 + i, sums[i]);
+		}
+	};
+
+	public static final Report STAFF_LOAD = new Report("staff",
+		"scheduled appointments and minutes per staff member",
+		"schedules", "appt_id",
+		"SELECT ST.hid, S.staff_id, A.time_slot, A.status, count(*) "
+		+ "FROM schedules S JOIN Appointment A ON A.appnt_ID = S.appt_id JOIN Staff ST ON ST.staff_ID = S.staff_id "
+		+ "WHERE S.appt_id >= ? AND S.appt_id < ? GROUP BY 1, 2, 3, 4;",
+		new String[] { "hospital_id", "hospital", "staff_id", "staff", "appointments", "active", "minutes", "active_minutes" },
+		new int[] { Row.LONG, Row.TEXT, Row.LONG, Row.TEXT, Row.LONG, Row.LONG, Row.LONG, Row.LONG }, 4){
+		void add(ResultSet rs, Map<Key, long[]> sums) throws SQLException {
+			long[] s = sums(sums, rs.getLong(1), rs.getLong(2));
+			long count = rs.getLong(5);
+			int slot = ScheduleEngine.parseSlot(rs.getString(3));
+			long minutes = slot < 0 ? 0 : count * (ScheduleEngine.end(slot) - ScheduleEngine.start(slot));
+			boolean active = "AC".equals(rs.getString(4));
+			s[0] += count;
+			s[2] += minutes;
+			if (active){
+				s[1] += count;
+				s[3] += minutes;
+			}//end if
+		}
+
+		void fill(Key key, long[] sums, Row row, ReferenceCache reference) throws SQLException {
+			ReferenceCache.Staff staff = reference.getStaff((int) key.values[1]);
+			row.setLong(1, key.values[0]);
+			row.setString(2, name(reference.getHospitalName((int) key.values[0])));
+			row.setLong(3, key.values[1]);
+			row.setString(4, staff == null ? "" : staff.name);
+			for (int i = 0; i < sums.length; ++i) row.setLong(5 + i, sums[i]);
+		}
+	};
+
+	//split on pid, so the patients of two chunks are never the same and their counts add up
+	public static final Report SEARCH_CONVERSION = new Report("conversion",
+		"searches per hospital and how many of the searched appointments are booked (AC or WL)",
+		"searches", "pid",
+		"SELECT S.hid, count(*), count(DISTINCT S.pid), count(*) FILTER (WHERE A.status IN ('AC', 'WL')), "
+		+ "count(DISTINCT S.pid) FILTER (WHERE A.status IN ('AC', 'WL')) "
+		+ "FROM searches S JOIN Appointment A ON A.appnt_ID = S.aid WHERE S.pid >= ? AND S.pid < ? GROUP BY 1;",
+		new String[] { "hospital_id", "hospital", "searches", "patients", "booked_searches", "booking_patients", "conversion" },
+		new int[] { Row.LONG, Row.TEXT, Row.LONG, Row.LONG, Row.LONG, Row.LONG, Row.DOUBLE }, 4){
+		void add(ResultSet rs, Map<Key, long[]> sums) throws SQLException {
+			long[] s = sums(sums, rs.getLong(1));
+			for (int i = 0; i < s.length; ++i) s[i] += rs.getLong(2 + i);
+		}
+
+		void fill(Key key, long[] sums, Row row, ReferenceCache reference) throws SQLException {
+			row.setLong(1, key.values[0]);
+			row.setString(2, name(reference.getHospitalName((int) key.values[0])));
+			for (int i = 0; i < sums.length; ++i) row.setLong(3 + i, sums[i]);
+			row.setDouble(7, sums[0] == 0 ? 0 : (double) sums[2] / sums[0]);
+		}
+	};
+
+	public static final Report[] REPORTS = { WEEKLY_APPOINTMENTS, STAFF_LOAD, SEARCH_CONVERSION };
+
+	/**
+	 * @return the report of that name, or null
+	 */
+	public static Report report(String name){
+		for (Report report : REPORTS)
+			if (report.name.equals(name)) return report;
+		return null;
+	}
+
+	/**
+	 * Called from the pool threads after each chunk is merged.
+	 */
+	public interface Listener{
+		void progress(Run run);
+	}
+
+	/**
+	 * One report being run.
+	 */
+	public final class Run{
+		final Report report;
+		final Listener listener;
+		private final Map<Key, long[]> _totals = new HashMap<Key, long[]>();
+		//the statements inside executeQuery; they are cached and their connection goes back to
+		//the pool, so cancel may only reach them under this lock, while their query runs
+		private final Set<PreparedStatement> _running = new HashSet<PreparedStatement>();
+		private final AtomicInteger _done = new AtomicInteger();
+		private final CountDownLatch _finished = new CountDownLatch(1);
+		private volatile int _chunks = 0;
+		private volatile boolean _cancelled = false;
+		private volatile SQLException _error = null;
+		private final long _start = System.nanoTime();
+		private volatile long _nanos = -1;
+
+		Run(Report report, Listener listener){
+			this.report = report;
+			this.listener = listener;
+		}
+
+		public int getChunks(){ return this._chunks; }
+		public int getChunksDone(){ return this._done.get(); }
+		public boolean isCancelled(){ return this._cancelled; }
+		public boolean isDone(){ return this._finished.getCount() == 0; }
+
+		/**
+		 * @return the run time, or the time so far while it runs
+		 */
+		public long getNanos(){
+			long nanos = this._nanos;
+			return nanos < 0 ? System.nanoTime() - this._start : nanos;
+		}
+
+		/**
+		 * Method to stop the report. Chunks not started yet are skipped and
+		 * the queries of running ones cancelled; the totals so far are kept.
+		 */
+		public void cancel(){
+			this._cancelled = true;
+			synchronized (this._running){
+				for (PreparedStatement stmt : this._running){
+					try{
+						stmt.cancel();
+					}catch (SQLException e){
+						// ignored, the chunk ends anyway.
+					}//end try
+				}//end for
+			}
+		}
+
+		/**
+		 * Method to wait for the report to end.
+		 *
+		 * @return false when it is still running after the timeout
+		 * @throws java.sql.SQLException when a chunk failed
+		 */
+		public boolean await(long timeoutMillis) throws SQLException, InterruptedException {
+			if (!this._finished.await(timeoutMillis, TimeUnit.MILLISECONDS)) return false;
+			if (this._error != null) throw this._error;
+			return true;
+		}
+
+		/**
+		 * Method to hand the totals to a visitor, in key order. While the
+		 * report runs, or after it was cancelled, these are the totals of the
+		 * chunks done so far.
+		 *
+		 * @return the number of rows passed to out
+		 */
+		public int visit(RowVisitor out) throws SQLException {
+			List<Map.Entry<Key, long[]>> rows = new ArrayList<Map.Entry<Key, long[]>>();
+			synchronized (this._totals){
+				for (Map.Entry<Key, long[]> e : this._totals.entrySet())
+					rows.add(new HashMap.SimpleEntry<Key, long[]>(e.getKey(), e.getValue().clone()));
+			}
+			rows.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+			Row row = new Row(this.report.names, this.report.kinds);
+			int count = 0;
+			for (Map.Entry<Key, long[]> e : rows){
+				this.report.fill(e.getKey(), e.getValue(), row, ReportEngine.this._reference);
+				++count;
+				if (!out.visit(row)) break;
+			}//end for
+			return count;
+		}
+
+		void chunk(long from, long to){
+			if (this._cancelled || this._error != null) return;
+			Map<Key, long[]> sums = new HashMap<Key, long[]>();
+			ConnectionPool.PooledConnection pc = null;
+			try{
+				pc = ReportEngine.this._pool.borrow();
+				PreparedStatement stmt = DBproject.prepare(pc, this.report.sql, new Object[] { from, to });
+				synchronized (this._running){
+					if (this._cancelled) return;
+					this._running.add(stmt);
+				}
+				ResultSet rs;
+				try{
+					rs = stmt.executeQuery();
+				}finally{
+					//a cancel sent before this is done with, the next query on the connection is safe
+					synchronized (this._running){
+						this._running.remove(stmt);
+					}
+				}
+				while (rs.next()) this.report.add(rs, sums);
+				rs.close();
+			}catch (SQLException e){
+				if (!this._cancelled && this._error == null) this._error = e;
+				return;
+			}finally{
+				ReportEngine.this._pool.release(pc);
+			}
+			synchronized (this._totals){
+				for (Map.Entry<Key, long[]> e : sums.entrySet()){
+					long[] total = this._totals.get(e.getKey());
+					if (total == null){
+						this._totals.put(e.getKey(), e.getValue());
+						continue;
+					}//end if
+					for (int i = 0; i < total.length; ++i) total[i] += e.getValue()[i];
+				}//end for
+			}
+			this._done.incrementAndGet();
+			if (this.listener != null) this.listener.progress(this);
+		}
+
+		void finish(){
+			this._nanos = System.nanoTime() - this._start;
+			this._finished.countDown();
+		}
+	}
+
+	/**
+	 * The keys [from, to) of a report, cut in halves down to one chunk.
+	 */
+	private static final class Split extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+
+		private final Run _run;
+		private final long _from;
+		private final long _to;
+		private final long _span;
+
+		Split(Run run, long from, long to, long span){
+			this._run = run;
+			this._from = from;
+			this._to = to;
+			this._span = span;
+		}
+
+		@Override
+		protected void compute(){
+			if (this._run.isCancelled()) return;
+			if (this._to - this._from <= this._span){
+				this._run.chunk(this._from, this._to);
+				return;
+			}//end if
+			long middle = this._from + (this._to - this._from) / 2;
+			invokeAll(new Split(this._run, this._from, middle, this._span), new Split(this._run, middle, this._to, this._span));
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final ReferenceCache _reference;
+	private final ForkJoinPool _forkJoin;
+	private final int _chunks;
+
+	public ReportEngine(ConnectionPool pool, ReferenceCache reference){
+		this(pool, reference, DEFAULT_PARALLELISM, DEFAULT_CHUNKS);
+	}
+
+	/**
+	 * @param parallelism the most chunks run at once, each on its own connection
+	 * @param chunks about how many chunks a report is split into
+	 */
+	public ReportEngine(ConnectionPool pool, ReferenceCache reference, int parallelism, int chunks){
+		this._pool = pool;
+		this._reference = reference;
+		this._forkJoin = new ForkJoinPool(Math.max(1, parallelism));
+		this._chunks = Math.max(1, chunks);
+	}
+
+	/**
+	 * Method to start a report in the background.
+	 *
+	 * @param listener told after each chunk, may be null
+	 * @return the run, to wait for, read or cancel
+	 * @throws java.sql.SQLException when the key range can not be read
+	 */
+	public Run start(Report report, Listener listener) throws SQLException {
+		final Run run = new Run(report, listener);
+		long min, max;
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, "SELECT min(" + report.column + "), max(" + report.column + ") FROM " + report.table + ";", new Object[0]);
+			rs.next();
+			min = rs.getLong(1);
+			boolean empty = rs.wasNull();
+			max = rs.getLong(2);
+			rs.close();
+			if (empty){
+				run.finish();
+				return run;
+			}//end if
+		}finally{
+			this._pool.release(pc);
+		}
+		final long from = min, to = max + 1;
+		final long span = Math.max(1, (to - from + this._chunks - 1) / this._chunks);
+		//the halving makes chunks of span / 2 to span keys
+		run._chunks = countChunks(to - from, span);
+		this._forkJoin.execute(new RecursiveAction(){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute(){
+				try{
+					new Split(run, from, to, span).invoke();
+				}finally{
+					run.finish();
+				}
+			}
+		});
+		return run;
+	}
+
+	private static int countChunks(long keys, long span){
+		if (keys <= span) return 1;
+		long half = keys / 2;
+		return countChunks(half, span) + countChunks(keys - half, span);
+	}
+
+	public void close(){
+		this._forkJoin.shutdownNow();
+	}
+}
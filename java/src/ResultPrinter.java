@@ -0,0 +1,260 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class writes the rows of a streamed query through one large buffer
+ * in one of several formats. The column names and types are read once,
+ * from the first row, and the output is flushed once at the end instead
+ * of once per cell.
+ *
+ * ALIGNED holds back the first ALIGN_SAMPLE rows to size its columns. A
+ * later value wider than its column widens the column from that row on,
+ * so rows written before it are not realigned. JSONL writes numbers bare,
+ * except NaN and the infinities, which JSON has no number for; those are
+ * written as strings.
+ *
+ */
+
+public class ResultPrinter implements RowVisitor{
+	public enum Format{
+		ALIGNED,	//space padded columns under a header, widths taken from the first rows and widened by later ones
+		TSV,		//tab separated values with a header line
+		CSV,		//comma separated values with a header line, quoted when needed
+		JSONL		//one JSON object per row
+	}
+
+	public static final int BUFFER_SIZE = 1 << 16;
+	//rows held back to compute the column widths of the ALIGNED format
+	public static final int ALIGN_SAMPLE = Integer.getInteger("dbproject.output.alignSample", 1000);
+
+	private final Writer _out;
+	private final Format _format;
+	private final boolean _closeWhenDone;
+
+	//column metadata, set from the first row
+	private int _numCol = -1;
+	private String[] _names;
+	private boolean[] _numeric;
+	private int[] _widths;
+	private List<String[]> _sample;
+
+	public ResultPrinter(Writer out, Format format, boolean closeWhenDone){
+		this._out = out;
+		this._format = format;
+		this._closeWhenDone = closeWhenDone;
+	}
+
+	/**
+	 * Method to create the printer used by the menu options. The format is
+	 * taken from dbproject.output.format (default TSV) and the destination
+	 * from dbproject.output, a file or pipe path (default standard out).
+	 *
+	 * @return a printer to pass to streamQuery, then finish
+	 * @throws java.io.IOException when the output file can not be opened
+	 */
+	public static ResultPrinter fromProperties() throws IOException {
+		Format format = Format.valueOf(System.getProperty("dbproject.output.format", "TSV").toUpperCase());
+		String path = System.getProperty("dbproject.output");
+		if (path == null || path.equals("-"))
+			return new ResultPrinter(writer(System.out), format, false);
+		return new ResultPrinter(writer(new FileOutputStream(path, true)), format, true);
+	}
+
+	public static Writer writer(OutputStream out){
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	public boolean visit(Row row) throws SQLException {
+		try{
+			if (this._numCol < 0) start(row);
+			if (this._format == Format.ALIGNED && this._sample != null){
+				String[] values = new String[this._numCol];
+				for (int i = 0; i < this._numCol; ++i){
+					values[i] = String.valueOf(row.getString(i + 1));
+					this._widths[i] = Math.max(this._widths[i], values[i].length());
+				}//end for
+				this._sample.add(values);
+				if (this._sample.size() >= ALIGN_SAMPLE) drainSample();
+				return true;
+			}//end if
+			writeRow(row);
+			return true;
+		}catch (IOException e){
+			throw new SQLException("Unable to write the query result: " + e.getMessage(), e);
+		}//end try
+	}
+
+	/**
+	 * Method to write out anything still held back and flush the output.
+	 * Must be called once after the query, also when it returned no rows.
+	 */
+	public void finish() throws IOException {
+		if (this._sample != null) drainSample();
+		if (this._closeWhenDone) this._out.close();
+		else this._out.flush();
+	}
+
+	private void start(Row row) throws IOException {
+		this._numCol = row.getColumnCount();
+		this._names = new String[this._numCol];
+		this._numeric = new boolean[this._numCol];
+		for (int i = 0; i < this._numCol; ++i){
+			this._names[i] = row.getColumnName(i + 1);
+			this._numeric[i] = row.getKind(i + 1) == Row.LONG || row.getKind(i + 1) == Row.DOUBLE;
+		}//end for
+
+		switch (this._format){
+			case ALIGNED:
+				this._widths = new int[this._numCol];
+				for (int i = 0; i < this._numCol; ++i)
+					this._widths[i] = this._names[i].length();
+				this._sample = new ArrayList<String[]>();
+				break;
+			case TSV:
+				writeLine(this._names, '\t');
+				break;
+			case CSV:
+				for (int i = 0; i < this._numCol; ++i){
+					if (i > 0) this._out.write(',');
+					writeCsv(this._names[i]);
+				}//end for
+				this._out.write('\n');
+				break;
+			default:
+				//JSONL has no header, the keys are escaped once here instead
+				for (int i = 0; i < this._numCol; ++i)
+					this._names[i] = "\"" + jsonEscape(this._names[i]) + "\":";
+				break;
+		}
+	}
+
+	private void drainSample() throws IOException {
+		//the header is written with the first batch of rows, once the widths are known
+		if (this._widths != null){
+			writePadded(this._names);
+			for (int i = 0; i < this._numCol; ++i){
+				if (i > 0) this._out.write("-+-");
+				for (int j = 0; j < this._widths[i]; ++j) this._out.write('-');
+			}//end for
+			this._out.write('\n');
+		}//end if
+		for (String[] values : this._sample)
+			writePadded(values);
+		this._sample = null;
+	}
+
+	private void writeRow(Row row) throws IOException {
+		switch (this._format){
+			case ALIGNED: {
+				String[] values = new String[this._numCol];
+				for (int i = 0; i < this._numCol; ++i) values[i] = String.valueOf(row.getString(i + 1));
+				writePadded(values);
+				break;
+			}
+			case TSV:
+				for (int i = 0; i < this._numCol; ++i){
+					if (i > 0) this._out.write('\t');
+					this._out.write(String.valueOf(row.getString(i + 1)));
+				}//end for
+				this._out.write('\n');
+				break;
+			case CSV:
+				for (int i = 0; i < this._numCol; ++i){
+					if (i > 0) this._out.write(',');
+					if (!row.isNull(i + 1)) writeCsv(row.getString(i + 1));
+				}//end for
+				this._out.write('\n');
+				break;
+			default:
+				this._out.write('{');
+				for (int i = 0; i < this._numCol; ++i){
+					if (i > 0) this._out.write(',');
+					this._out.write(this._names[i]);
+					if (row.isNull(i + 1)) this._out.write("null");
+					else if (this._numeric[i]) writeJsonNumber(row.getString(i + 1));
+					else{
+						this._out.write('"');
+						this._out.write(jsonEscape(row.getString(i + 1)));
+						this._out.write('"');
+					}//end if
+				}//end for
+				this._out.write("}\n");
+				break;
+		}
+	}
+
+	private void writeJsonNumber(String value) throws IOException {
+		//NaN, Infinity and -Infinity are not JSON numbers
+		char c = value.isEmpty() ? 'N' : value.charAt(value.charAt(0) == '-' && value.length() > 1 ? 1 : 0);
+		if (c >= '0' && c <= '9'){
+			this._out.write(value);
+			return;
+		}//end if
+		this._out.write('"');
+		this._out.write(value);
+		this._out.write('"');
+	}
+
+	private void writeLine(String[] values, char separator) throws IOException {
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0) this._out.write(separator);
+			this._out.write(values[i]);
+		}//end for
+		this._out.write('\n');
+	}
+
+	private void writePadded(String[] values) throws IOException {
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0) this._out.write(" | ");
+			if (values[i].length() > this._widths[i]) this._widths[i] = values[i].length();
+			int pad = this._widths[i] - values[i].length();
+			if (this._numeric[i]) for (int j = 0; j < pad; ++j) this._out.write(' ');
+			this._out.write(values[i]);
+			if (!this._numeric[i] && i < values.length - 1) for (int j = 0; j < pad; ++j) this._out.write(' ');
+		}//end for
+		this._out.write('\n');
+	}
+
+	private void writeCsv(String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; ++i){
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}//end for
+		if (!quote){
+			this._out.write(value);
+			return;
+		}//end if
+		this._out.write('"');
+		this._out.write(value.replace("\"", "\"\""));
+		this._out.write('"');
+	}
+
+	static String jsonEscape(String value){
+		StringBuilder sb = null;
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			String escaped = null;
+			if (c == '"') escaped = "\\\"";
+			else if (c == '\\') escaped = "\\\\";
+			else if (c == '\n') escaped = "\\n";
+			else if (c == '\r') escaped = "\\r";
+			else if (c == '\t') escaped = "\\t";
+			else if (c < 0x20) escaped = String.format("\\u%04x", (int) c);
+			if (escaped != null && sb == null) sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+			if (sb != null){
+				if (escaped != null) sb.append(escaped);
+				else sb.append(c);
+			}//end if
+		}//end for
+		return sb == null ? value : sb.toString();
+	}
+}
@@ -0,0 +1,183 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+
+/**
+ * One row of a streamed query. Integer and date columns are kept as longs
+ * (dates as epoch days) and floating point columns as doubles, so reading
+ * them does not box. Every other column is kept as its string value.
+ *
+ * A single Row is filled in place for each row of the result set.
+ *
+ */
+
+public class Row{
+	static final int LONG = 0;
+	static final int DOUBLE = 1;
+	static final int DATE = 2;
+	static final int TEXT = 3;
+
+	private final String[] _names;
+	private final int[] _kinds;
+	private final long[] _longs;
+	private final double[] _doubles;
+	private final String[] _strings;
+	private final boolean[] _nulls;
+
+	Row(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		this._names = new String[numCol];
+		this._kinds = new int[numCol];
+		this._longs = new long[numCol];
+		this._doubles = new double[numCol];
+		this._strings = new String[numCol];
+		this._nulls = new boolean[numCol];
+		for (int i = 0; i < numCol; ++i){
+			this._names[i] = rsmd.getColumnName(i + 1);
+			switch (rsmd.getColumnType(i + 1)){
+				case Types.SMALLINT:
+				case Types.INTEGER:
+				case Types.BIGINT:
+					this._kinds[i] = LONG; break;
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+					this._kinds[i] = DOUBLE; break;
+				case Types.DATE:
+					this._kinds[i] = DATE; break;
+				default:
+					this._kinds[i] = TEXT; break;
+			}
+		}//end for
+	}
+
+	/**
+	 * Builds an empty row from column names and kinds, for replaying rows
+	 * that do not come from a result set.
+	 */
+	Row(String[] names, int[] kinds){
+		this._names = names.clone();
+		this._kinds = kinds.clone();
+		this._longs = new long[kinds.length];
+		this._doubles = new double[kinds.length];
+		this._strings = new String[kinds.length];
+		this._nulls = new boolean[kinds.length];
+	}
+
+	void setLong(int i, long value){
+		this._longs[i - 1] = value;
+		this._nulls[i - 1] = false;
+	}
+
+	void setDouble(int i, double value){
+		this._doubles[i - 1] = value;
+		this._nulls[i - 1] = false;
+	}
+
+	void setString(int i, String value){
+		this._strings[i - 1] = value;
+		this._nulls[i - 1] = value == null;
+	}
+
+	/**
+	 * Method to copy one column of another row into a column of this one
+	 * of the same kind.
+	 */
+	void copy(Row src, int from, int to){
+		this._longs[to - 1] = src._longs[from - 1];
+		this._doubles[to - 1] = src._doubles[from - 1];
+		this._strings[to - 1] = src._strings[from - 1];
+		this._nulls[to - 1] = src._nulls[from - 1];
+	}
+
+	/**
+	 * Method to copy the current row of the result set into this row.
+	 */
+	void fill(ResultSet rs) throws SQLException {
+		for (int i = 0; i < this._kinds.length; ++i){
+			switch (this._kinds[i]){
+				case LONG:
+					this._longs[i] = rs.getLong(i + 1);
+					break;
+				case DOUBLE:
+					this._doubles[i] = rs.getDouble(i + 1);
+					break;
+				case DATE:
+					Date date = rs.getDate(i + 1);
+					if (date != null) this._longs[i] = date.toLocalDate().toEpochDay();
+					break;
+				default:
+					this._strings[i] = rs.getString(i + 1);
+					break;
+			}
+			this._nulls[i] = rs.wasNull();
+		}//end for
+	}
+
+	/**
+	 * @return about how many bytes the values of the row take on the wire,
+	 * 8 per number or date and one per character of text
+	 */
+	int byteSize(){
+		int size = 0;
+		for (int i = 0; i < this._kinds.length; ++i){
+			if (this._nulls[i]) continue;
+			size += this._kinds[i] == TEXT ? this._strings[i].length() : 8;
+		}//end for
+		return size;
+	}
+
+	public int getColumnCount(){ return this._kinds.length; }
+
+	/**
+	 * @param i the column index, starting at 1 like JDBC
+	 */
+	public String getColumnName(int i){ return this._names[i - 1]; }
+
+	int getKind(int i){ return this._kinds[i - 1]; }
+
+	public boolean isNull(int i){ return this._nulls[i - 1]; }
+
+	public long getLong(int i){
+		switch (this._kinds[i - 1]){
+			case LONG: case DATE: return this._longs[i - 1];
+			case DOUBLE: return (long) this._doubles[i - 1];
+			default: return this._nulls[i - 1] ? 0 : Long.parseLong(this._strings[i - 1].trim());
+		}
+	}
+
+	public int getInt(int i){ return (int) getLong(i); }
+
+	public double getDouble(int i){
+		switch (this._kinds[i - 1]){
+			case LONG: case DATE: return this._longs[i - 1];
+			case DOUBLE: return this._doubles[i - 1];
+			default: return this._nulls[i - 1] ? 0 : Double.parseDouble(this._strings[i - 1].trim());
+		}
+	}
+
+	/**
+	 * @return the date of a DATE column, or null
+	 */
+	public LocalDate getDate(int i){
+		if (this._nulls[i - 1]) return null;
+		if (this._kinds[i - 1] == DATE) return LocalDate.ofEpochDay(this._longs[i - 1]);
+		return LocalDate.parse(getString(i));
+	}
+
+	/**
+	 * @return the value formatted the way ResultSet.getString does, or null
+	 */
+	public String getString(int i){
+		if (this._nulls[i - 1]) return null;
+		switch (this._kinds[i - 1]){
+			case LONG: return Long.toString(this._longs[i - 1]);
+			case DOUBLE: return Double.toString(this._doubles[i - 1]);
+			case DATE: return LocalDate.ofEpochDay(this._longs[i - 1]).toString();
+			default: return this._strings[i - 1];
+		}
+	}
+}
@@ -0,0 +1,16 @@
+import java.sql.SQLException;
+
+/**
+ * Callback handed each row of a streamed query. The row object is reused
+ * for every row, so copy out what needs to outlive the call.
+ *
+ */
+
+public interface RowVisitor{
+	/**
+	 * @param row the current row
+	 * @return true to keep reading, false to stop the query early
+	 * @throws java.sql.SQLException to abort the query
+	 */
+	boolean visit(Row row) throws SQLException;
+}
@@ -0,0 +1,614 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps the calendar of every doctor in memory, so a booking
+ * can be checked against it without a query. A time slot such as
+ * 8:00-10:00 is parsed into minutes of the day, and the taken (active AC
+ * or waitlisted WL) appointments of one doctor on one day are kept as a
+ * step function: the
+ * sorted minutes where the number of appointments at once changes, and
+ * that number from each of them on. Checking an interval is a binary
+ * search and a walk over the changes inside it.
+ *
+ * A doctor takes at most patient_per_hour patients at once, the largest
+ * of the doctor's request_maintenance rows, or DEFAULT_CAPACITY without
+ * one. Their time slots are the doctor's hours, where free slots are
+ * suggested.
+ *
+ * The calendar is loaded by a listener thread, which then follows the
+ * availability_changed notifications of sql/migrations/003 and the
+ * request_maintenance ones of sql/create.sql. Bookings of this process
+ * reserve their interval before they commit; reservations are kept apart
+ * from the committed calendar, which is all a notification reloads, and
+ * join it on commit().
+ *
+ * The calendar only sees other processes' bookings once they committed,
+ * so it is a fast first check. confirm() is the one that counts: run in
+ * the booking transaction, it takes an advisory lock on each doctor and
+ * day, so bookings of any process sharing a doctor's day go one at a time
+ * up to their commit, and checks the slot against the committed rows.
+ *
+ */
+
+public class ScheduleEngine{
+	public static final int MINUTES_PER_DAY = 24 * 60;
+	public static final int DEFAULT_CAPACITY = Integer.getInteger("dbproject.schedule.defaultCapacity", 1);
+	//how many days from the wanted one suggest() looks at
+	public static final int SUGGEST_DAYS = Integer.getInteger("dbproject.schedule.suggestDays", 7);
+
+	private static final DateTimeFormatter US_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+	private static final String LOAD_BOOKED =
+		"SELECT A.appnt_ID, A.adate, A.time_slot, H.doctor_id FROM Appointment A, has_appointment H WHERE A.appnt_ID = H.appt_id AND A.status IN ('AC', 'WL');";
+	private static final String LOAD_ONE =
+		"SELECT A.adate, A.time_slot, H.doctor_id FROM Appointment A, has_appointment H WHERE A.appnt_ID = H.appt_id AND A.status IN ('AC', 'WL') AND A.appnt_ID = ?;";
+	//(doctor, epoch day), held until the booking transaction ends
+	private static final String LOCK_DAY =
+		"SELECT pg_advisory_xact_lock(?, ?);";
+	private static final String LOAD_CAPACITY =
+		"SELECT max(patient_per_hour) FROM request_maintenance WHERE did = ?;";
+	private static final String LOAD_DAY =
+		"SELECT A.time_slot FROM Appointment A, has_appointment H WHERE A.appnt_ID = H.appt_id AND H.doctor_id = ? AND A.adate = ? AND A.status IN ('AC', 'WL') AND A.appnt_ID <> ?;";
+	private static final String LOAD_HOURS =
+		"SELECT did, patient_per_hour, time_slot FROM request_maintenance;";
+
+	/**
+	 * The number of appointments at once of one doctor on one day: count[i]
+	 * from minute at[i] up to at[i + 1], none before at[0] and from the last
+	 * one on. Never changed once built.
+	 */
+	static final class Occupancy{
+		final int[] at;
+		final short[] count;
+
+		Occupancy(int[] at, short[] count){
+			this.at = at;
+			this.count = count;
+		}
+
+		/**
+		 * @return the most appointments at once in [start, end)
+		 */
+		int max(int start, int end){
+			int i = Arrays.binarySearch(this.at, start);
+			if (i < 0) i = -i - 2;
+			int max = i < 0 ? 0 : this.count[i];
+			for (int j = i + 1; j < this.at.length && this.at[j] < end; ++j)
+				max = Math.max(max, this.count[j]);
+			return max;
+		}
+
+		/**
+		 * @return this with delta appointments more in [start, end), or null when none are left
+		 */
+		static Occupancy plus(Occupancy old, int start, int end, int delta){
+			int n = old == null ? 0 : old.at.length;
+			int[] at = new int[n + 2];
+			int m = 0, i = 0;
+			//merge the two new boundaries into the sorted old ones
+			for (int b : new int[] { start, end }){
+				while (i < n && old.at[i] < b) at[m++] = old.at[i++];
+				if (i < n && old.at[i] == b) continue;
+				at[m++] = b;
+			}//end for
+			while (i < n) at[m++] = old.at[i++];
+
+			int[] kept = new int[m];
+			short[] count = new short[m];
+			int k = 0, j = -1, previous = 0;
+			for (int b = 0; b < m; ++b){
+				while (j + 1 < n && old.at[j + 1] <= at[b]) ++j;
+				int c = (j < 0 ? 0 : old.count[j]) + (at[b] >= start && at[b] < end ? delta : 0);
+				if (c == previous) continue;
+				kept[k] = at[b];
+				count[k++] = (short) c;
+				previous = c;
+			}//end for
+			return k == 0 ? null : new Occupancy(Arrays.copyOf(kept, k), Arrays.copyOf(count, k));
+		}
+	}
+
+	/**
+	 * How many patients a doctor takes at once and the doctor's hours.
+	 */
+	static final class Hours{
+		final int capacity;
+		//sorted slots that do not overlap, as parseSlot() returns them
+		final int[] windows;
+
+		Hours(int capacity, int[] windows){
+			this.capacity = capacity;
+			this.windows = windows;
+		}
+	}
+
+	private static final Hours DEFAULT_HOURS = new Hours(DEFAULT_CAPACITY, new int[] { MINUTES_PER_DAY });
+
+	/**
+	 * The whole calendar, replaced as one on a reload.
+	 */
+	private static final class State{
+		//(epoch day << 32 | doctor) to the doctor's appointments that day
+		final ConcurrentHashMap<Long, Occupancy> byDay = new ConcurrentHashMap<Long, Occupancy>();
+		//committed appointment to the keys of byDay it is counted under, each followed by its slot
+		final HashMap<Integer, long[]> booked = new HashMap<Integer, long[]>();
+		//the same for reservations of this process not committed yet, also counted in byDay
+		final HashMap<Integer, long[]> pending = new HashMap<Integer, long[]>();
+	}
+
+	private final ConnectionPool _pool;
+	private volatile State _state = new State();
+	private volatile Map<Integer, Hours> _hours = new HashMap<Integer, Hours>();
+	private volatile boolean _ready = false;
+
+	private final AtomicLong _checks = new AtomicLong();
+	private final AtomicLong _conflicts = new AtomicLong();
+	private final AtomicLong _updates = new AtomicLong();
+	private final AtomicLong _reloads = new AtomicLong();
+
+	//orders the database reads of refresh() and reload() against local commits, guarded by this
+	private long _sequence = 0;
+	//appointment to the _sequence of its last commit() not yet seen by a refresh
+	private final HashMap<Integer, Long> _committedAt = new HashMap<Integer, Long>();
+
+	private volatile boolean _closed = false;
+	private Thread _listener = null;
+
+	public ScheduleEngine(ConnectionPool pool){
+		this._pool = pool;
+	}
+
+	private static long key(long day, int doctor){
+		return (day << 32) | (doctor & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param timeSlot HH:MM-HH:MM, as time_slot holds it, up to 24:00
+	 * @return start minute << 16 | end minute, or -1 when it is not a slot
+	 * of one day that ends after it starts
+	 */
+	public static int parseSlot(String timeSlot){
+		if (timeSlot == null) return -1;
+		int dash = timeSlot.indexOf('-');
+		if (dash < 0) return -1;
+		int start = parseMinute(timeSlot.substring(0, dash).trim());
+		int end = parseMinute(timeSlot.substring(dash + 1).trim());
+		if (start < 0 || end <= start || end > MINUTES_PER_DAY) return -1;
+		return start << 16 | end;
+	}
+
+	private static int parseMinute(String time){
+		int colon = time.indexOf(':');
+		if (colon < 1 || colon != time.length() - 3) return -1;
+		try{
+			int hour = Integer.parseInt(time.substring(0, colon));
+			int minute = Integer.parseInt(time.substring(colon + 1));
+			if (hour < 0 || hour > 24 || minute < 0 || minute > 59) return -1;
+			return hour * 60 + minute;
+		}catch (NumberFormatException e){
+			return -1;
+		}//end try
+	}
+
+	static int start(int slot){ return slot >>> 16; }
+	static int end(int slot){ return slot & 0xFFFF; }
+
+	/**
+	 * @return the slot as time_slot holds it, e.g. 8:00-10:30
+	 */
+	public static String formatSlot(int slot){
+		return String.format("%d:%02d-%d:%02d", start(slot) / 60, start(slot) % 60, end(slot) / 60, end(slot) % 60);
+	}
+
+	/**
+	 * @return whether the calendar is loaded and followed, so checks are current
+	 */
+	public boolean isReady(){
+		return this._ready;
+	}
+
+	private Hours hours(int doctor){
+		Hours hours = this._hours.get(doctor);
+		return hours == null ? DEFAULT_HOURS : hours;
+	}
+
+	/**
+	 * @return whether one more appointment of the doctor fits in the slot
+	 */
+	public boolean fits(int doctor, long day, int slot){
+		this._checks.incrementAndGet();
+		Occupancy occupancy = this._state.byDay.get(key(day, doctor));
+		return occupancy == null || occupancy.max(start(slot), end(slot)) < hours(doctor).capacity;
+	}
+
+	/**
+	 * Method to count an appointment for each of its doctors when it fits
+	 * all of them, before it is committed. A reservation of a transaction
+	 * that commits is handed over with commit(), one that does not must be
+	 * given back with release().
+	 *
+	 * @param doctors the doctors the appointment is linked to
+	 * @return false, and nothing is counted, when one of the doctors is full at some minute of the slot
+	 */
+	public synchronized boolean reserve(int apptId, int[] doctors, long day, int slot){
+		for (int doctor : doctors){
+			if (!fits(doctor, day, slot)){
+				this._conflicts.incrementAndGet();
+				return false;
+			}//end if
+		}//end for
+		State state = this._state;
+		for (int doctor : doctors) add(state, state.pending, apptId, key(day, doctor), slot);
+		this._updates.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Method to stop counting a reservation for the doctors, e.g. after its
+	 * booking was rolled back.
+	 */
+	public synchronized void release(int apptId, int[] doctors){
+		State state = this._state;
+		for (int doctor : doctors){
+			long[] pending = state.pending.get(apptId);
+			if (pending == null) return;
+			for (int i = 0; i < pending.length; i += 2){
+				if ((int) pending[i] != doctor) continue;
+				remove(state, state.pending, apptId, i);
+				break;
+			}//end for
+		}//end for
+		this._updates.incrementAndGet();
+	}
+
+	/**
+	 * Method to turn the reservations of an appointment into committed
+	 * entries once its booking committed, until the change notification
+	 * reloads it.
+	 */
+	public synchronized void commit(int apptId){
+		State state = this._state;
+		this._committedAt.put(apptId, ++this._sequence);
+		long[] pending = state.pending.remove(apptId);
+		if (pending == null) return;
+		long[] booked = state.booked.get(apptId);
+		for (int i = 0; i < pending.length; i += 2){
+			boolean counted = false;
+			for (int j = 0; booked != null && j < booked.length && !counted; j += 2) counted = booked[j] == pending[i];
+			//already there when a notification got in first, the reservation was counted twice
+			if (counted) put(state, pending[i], Occupancy.plus(state.byDay.get(pending[i]), start((int) pending[i + 1]), end((int) pending[i + 1]), -1));
+			else booked = append(booked, pending[i], pending[i + 1]);
+		}//end for
+		if (booked != null) state.booked.put(apptId, booked);
+	}
+
+	/**
+	 * Method to check, in the booking transaction, that an appointment fits
+	 * the committed appointments of each of its doctors on that day. Takes
+	 * a transaction level advisory lock on each doctor and day first, so no
+	 * other booking of that doctor and day, in any process, can commit in
+	 * between; the locks are taken in the order of doctors, which must be
+	 * sorted.
+	 *
+	 * @param pc the connection of the booking transaction
+	 * @return false when one of the doctors is full at some minute of the slot
+	 */
+	public boolean confirm(ConnectionPool.PooledConnection pc, int apptId, int[] doctors, long day, int slot) throws SQLException {
+		Date date = Date.valueOf(LocalDate.ofEpochDay(day));
+		for (int doctor : doctors){
+			DBproject.executeCached(pc, LOCK_DAY, new Object[] { doctor, (int) day }).close();
+			ResultSet rs = DBproject.executeCached(pc, LOAD_CAPACITY, new Object[] { doctor });
+			int capacity = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+			capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+			Occupancy occupancy = null;
+			rs = DBproject.executeCached(pc, LOAD_DAY, new Object[] { doctor, date, apptId });
+			while (rs.next()){
+				int other = parseSlot(rs.getString(1));
+				if (other >= 0) occupancy = Occupancy.plus(occupancy, start(other), end(other), 1);
+			}//end while
+			rs.close();
+			if (occupancy != null && occupancy.max(start(slot), end(slot)) >= capacity){
+				this._conflicts.incrementAndGet();
+				return false;
+			}//end if
+		}//end for
+		return true;
+	}
+
+	/**
+	 * Method to find the next slots of a given length where the doctor has
+	 * room, within the doctor's hours, from a wanted slot on.
+	 *
+	 * @param slot the wanted slot, its length is kept
+	 * @param max the most slots returned
+	 * @return each as "MM/DD/YYYY HH:MM-HH:MM", earliest first
+	 */
+	public List<String> suggest(int doctor, long day, int slot, int max){
+		List<String> free = new ArrayList<String>();
+		Hours hours = hours(doctor);
+		int length = end(slot) - start(slot);
+		for (long d = day; d < day + SUGGEST_DAYS && free.size() < max; ++d){
+			Occupancy occupancy = this._state.byDay.get(key(d, doctor));
+			int from = d == day ? start(slot) : 0;
+			//a free slot starts where a window starts or the doctor gets less busy
+			int[] starts = occupancy == null ? new int[0] : occupancy.at;
+			for (int w : hours.windows){
+				int i = 0;
+				for (int candidate = Math.max(start(w), from); candidate + length <= end(w) && free.size() < max; ){
+					if (occupancy == null || occupancy.max(candidate, candidate + length) < hours.capacity){
+						free.add(LocalDate.ofEpochDay(d).format(US_DATE) + " " + formatSlot(candidate << 16 | (candidate + length)));
+						candidate += length;
+						continue;
+					}//end if
+					while (i < starts.length && starts[i] <= candidate) ++i;
+					if (i == starts.length) break;
+					candidate = starts[i];
+				}//end for
+			}//end for
+		}//end for
+		return free;
+	}
+
+	//counts the appointment under key in byDay and notes it in entries, state.booked or state.pending
+	private static void add(State state, HashMap<Integer, long[]> entries, int apptId, long key, int slot){
+		long[] booked = entries.get(apptId);
+		if (booked != null)
+			for (int i = 0; i < booked.length; i += 2) if (booked[i] == key) return;
+		entries.put(apptId, append(booked, key, slot));
+		put(state, key, Occupancy.plus(state.byDay.get(key), start(slot), end(slot), 1));
+	}
+
+	private static long[] append(long[] booked, long key, long slot){
+		booked = booked == null ? new long[2] : Arrays.copyOf(booked, booked.length + 2);
+		booked[booked.length - 2] = key;
+		booked[booked.length - 1] = slot;
+		return booked;
+	}
+
+	//drops the entry at index i of the appointment's keys in entries
+	private static void remove(State state, HashMap<Integer, long[]> entries, int apptId, int i){
+		long[] booked = entries.get(apptId);
+		long key = booked[i];
+		int slot = (int) booked[i + 1];
+		put(state, key, Occupancy.plus(state.byDay.get(key), start(slot), end(slot), -1));
+		if (booked.length == 2){
+			entries.remove(apptId);
+			return;
+		}//end if
+		long[] rest = new long[booked.length - 2];
+		System.arraycopy(booked, 0, rest, 0, i);
+		System.arraycopy(booked, i + 2, rest, i, booked.length - i - 2);
+		entries.put(apptId, rest);
+	}
+
+	private static void put(State state, long key, Occupancy occupancy){
+		if (occupancy == null) state.byDay.remove(key);
+		else state.byDay.put(key, occupancy);
+	}
+
+	/**
+	 * Method to load the whole calendar from the database and swap it in.
+	 */
+	void reload() throws SQLException {
+		State fresh = new State();
+		long read;
+		synchronized (this){
+			read = ++this._sequence;
+		}
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			pc.connection().setAutoCommit(false);
+			PreparedStatement stmt = DBproject.prepare(pc, LOAD_BOOKED, new Object[0]);
+			stmt.setFetchSize(DBproject.FETCH_SIZE);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				int slot = parseSlot(rs.getString(3));
+				if (slot < 0) continue;
+				add(fresh, fresh.booked, rs.getInt(1), key(rs.getDate(2).toLocalDate().toEpochDay(), rs.getInt(4)), slot);
+			}//end while
+			rs.close();
+			pc.connection().commit();
+		}finally{
+			this._pool.release(pc);
+		}
+		synchronized (this){
+			State old = this._state;
+			//reservations, and commits the read may have missed, carry over
+			for (Map.Entry<Integer, long[]> e : old.pending.entrySet())
+				for (int i = 0; i < e.getValue().length; i += 2) add(fresh, fresh.pending, e.getKey(), e.getValue()[i], (int) e.getValue()[i + 1]);
+			for (Iterator<Map.Entry<Integer, Long>> it = this._committedAt.entrySet().iterator(); it.hasNext(); ){
+				Map.Entry<Integer, Long> e = it.next();
+				if (e.getValue() < read){
+					it.remove();
+					continue;
+				}//end if
+				long[] booked = old.booked.get(e.getKey());
+				while (fresh.booked.containsKey(e.getKey())) remove(fresh, fresh.booked, e.getKey(), 0);
+				for (int i = 0; booked != null && i < booked.length; i += 2) add(fresh, fresh.booked, e.getKey(), booked[i], (int) booked[i + 1]);
+			}//end for
+			this._state = fresh;
+		}
+		this._reloads.incrementAndGet();
+	}
+
+	/**
+	 * Method to load the capacity and hours of every doctor.
+	 */
+	void reloadHours() throws SQLException {
+		Map<Integer, int[]> capacities = new HashMap<Integer, int[]>();
+		Map<Integer, List<Integer>> windows = new HashMap<Integer, List<Integer>>();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, LOAD_HOURS, new Object[0]);
+			while (rs.next()){
+				int doctor = rs.getInt(1);
+				int[] capacity = capacities.get(doctor);
+				if (capacity == null) capacities.put(doctor, capacity = new int[1]);
+				capacity[0] = Math.max(capacity[0], rs.getInt(2));
+				int slot = parseSlot(rs.getString(3));
+				if (slot < 0) continue;
+				List<Integer> list = windows.get(doctor);
+				if (list == null) windows.put(doctor, list = new ArrayList<Integer>());
+				list.add(slot);
+			}//end while
+			rs.close();
+		}finally{
+			this._pool.release(pc);
+		}
+		Map<Integer, Hours> hours = new HashMap<Integer, Hours>();
+		for (Map.Entry<Integer, int[]> e : capacities.entrySet()){
+			List<Integer> list = windows.get(e.getKey());
+			int[] slots = DEFAULT_HOURS.windows;
+			if (list != null){
+				slots = new int[list.size()];
+				for (int i = 0; i < slots.length; ++i) slots[i] = list.get(i);
+				Arrays.sort(slots);
+				//merge the slots of the doctor's rows that overlap
+				int n = 0;
+				for (int slot : slots){
+					if (n > 0 && start(slot) <= end(slots[n - 1])) slots[n - 1] = start(slots[n - 1]) << 16 | Math.max(end(slots[n - 1]), end(slot));
+					else slots[n++] = slot;
+				}//end for
+				slots = Arrays.copyOf(slots, n);
+			}//end if
+			hours.put(e.getKey(), new Hours(Math.max(1, e.getValue()[0]), slots));
+		}//end for
+		this._hours = hours;
+	}
+
+	/**
+	 * Method to reload one appointment after a change notification.
+	 */
+	void refresh(int apptId) throws SQLException {
+		List<long[]> rows = new ArrayList<long[]>();
+		long read;
+		synchronized (this){
+			read = ++this._sequence;
+		}
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			ResultSet rs = DBproject.executeCached(pc, LOAD_ONE, new Object[] { apptId });
+			while (rs.next()){
+				int slot = parseSlot(rs.getString(2));
+				if (slot >= 0) rows.add(new long[] { key(rs.getDate(1).toLocalDate().toEpochDay(), rs.getInt(3)), slot });
+			}//end while
+			rs.close();
+		}finally{
+			this._pool.release(pc);
+		}
+		synchronized (this){
+			//a local commit after the read is newer than it, its own notification follows
+			Long committed = this._committedAt.get(apptId);
+			if (committed != null && committed > read) return;
+			this._committedAt.remove(apptId);
+			State state = this._state;
+			while (state.booked.containsKey(apptId)) remove(state, state.booked, apptId, 0);
+			for (long[] r : rows) add(state, state.booked, apptId, r[0], (int) r[1]);
+		}
+		this._updates.incrementAndGet();
+	}
+
+	/**
+	 * Method to start the thread that loads the calendar and follows the
+	 * changes. When its connection breaks the calendar is not used until it
+	 * reconnected and loaded again, since changes may have been missed.
+	 */
+	public synchronized void startListener(){
+		if (this._listener != null) return;
+		this._listener = new Thread(new Runnable(){
+			public void run(){ listen(); }
+		}, "schedule-engine-listener");
+		this._listener.setDaemon(true);
+		this._listener.start();
+	}
+
+	private void listen(){
+		while (!this._closed){
+			Connection conn = null;
+			try{
+				conn = this._pool.openDedicated();
+				Statement stmt = conn.createStatement();
+				stmt.execute("LISTEN " + AvailabilityIndex.CHANNEL);
+				stmt.execute("LISTEN " + ReferenceCache.CHANNEL);
+				stmt.close();
+				//changes from here on are notified, load what was there before
+				reloadHours();
+				reload();
+				this._ready = true;
+				PGConnection pgconn = conn.unwrap(PGConnection.class);
+				while (!this._closed){
+					PGNotification[] notifications = pgconn.getNotifications(1000);
+					if (notifications == null) continue;
+					for (PGNotification n : notifications){
+						String payload = n.getParameter();
+						if (n.getName().equals(ReferenceCache.CHANNEL)){
+							if (payload.startsWith("request_maintenance:")) reloadHours();
+						}else if (payload.equals("*")){
+							reload();
+						}else{
+							refresh(Integer.parseInt(payload));
+						}//end if
+					}//end for
+				}//end while
+			}catch (SQLException | RuntimeException e){
+				this._ready = false;
+				if (this._closed) break;
+				System.err.println("Schedule engine listener: " + e.getMessage());
+				try{
+					Thread.sleep(5000);
+				}catch (InterruptedException ie){
+					break;
+				}//end try
+			}finally{
+				if (conn != null){
+					try{
+						conn.close();
+					}catch (SQLException e){
+						// ignored.
+					}//end try
+				}//end if
+			}
+		}//end while
+		this._ready = false;
+	}
+
+	public String stats(){
+		State state = this._state;
+		int appointments, pending;
+		synchronized (this){
+			appointments = state.booked.size();
+			pending = state.pending.size();
+		}
+		return String.format("schedule engine: %d taken appointments (%d pending) in %d doctor days, %d checks, %d conflicts, %d updates, %d reloads%s",
+			appointments, pending, state.byDay.size(), this._checks.get(), this._conflicts.get(), this._updates.get(), this._reloads.get(),
+			this._ready ? "" : " (not ready)");
+	}
+
+	public void close(){
+		this._closed = true;
+		Thread listener;
+		synchronized (this){
+			listener = this._listener;
+		}
+		if (listener != null) listener.interrupt();
+	}
+}
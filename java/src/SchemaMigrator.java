@@ -0,0 +1,93 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class applies the schema changes in sql/migrations to an existing
+ * database. Each .sql file is applied once, in file name order, in its own
+ * transaction, and recorded in the schema_migrations table.
+ *
+ */
+
+public class SchemaMigrator{
+	private final Connection _connection;
+
+	public SchemaMigrator(Connection connection){
+		this._connection = connection;
+	}
+
+	/**
+	 * Method to apply every migration file of a directory not applied yet.
+	 *
+	 * @param dir the directory of .sql files
+	 * @return the number of files applied
+	 * @throws java.sql.SQLException when a migration fails, it is rolled back
+	 * @throws java.io.IOException when a file can not be read
+	 */
+	public int migrate(File dir) throws SQLException, IOException {
+		Statement stmt = this._connection.createStatement();
+		stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (version VARCHAR(128) PRIMARY KEY, applied_at TIMESTAMP NOT NULL DEFAULT now());");
+		Set<String> applied = new HashSet<String>();
+		ResultSet rs = stmt.executeQuery("SELECT version FROM schema_migrations;");
+		while (rs.next()) applied.add(rs.getString(1));
+		rs.close();
+		stmt.close();
+
+		File[] files = dir.listFiles();
+		if (files == null) throw new IOException("No migration directory " + dir.getPath());
+		Arrays.sort(files);
+		int count = 0;
+		for (File file : files){
+			String version = file.getName();
+			if (!version.endsWith(".sql") || applied.contains(version)) continue;
+			String sql = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			long start = System.nanoTime();
+			this._connection.setAutoCommit(false);
+			try{
+				stmt = this._connection.createStatement();
+				stmt.execute(sql);
+				stmt.close();
+				PreparedStatement record = this._connection.prepareStatement("INSERT INTO schema_migrations (version) VALUES (?);");
+				record.setString(1, version);
+				record.executeUpdate();
+				record.close();
+				this._connection.commit();
+			}catch (SQLException e){
+				this._connection.rollback();
+				throw new SQLException(version + ": " + e.getMessage(), e);
+			}finally{
+				this._connection.setAutoCommit(true);
+			}
+			System.out.println(String.format("applied %s in %.0f ms", version, (System.nanoTime() - start) / 1e6));
+			++count;
+		}//end for
+		return count;
+	}//end migrate
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + SchemaMigrator.class.getName()
+				+ " <dbname> <port> <user> [migrations dir]");
+			return;
+		}//end if
+		File dir = new File(args.length > 3 ? args[3] : "../sql/migrations");
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		Connection conn = DriverManager.getConnection(url, args[2], "");
+		try{
+			int count = new SchemaMigrator(conn).migrate(dir);
+			System.out.println(count == 0 ? "schema is up to date" : count + " migration(s) applied");
+		}finally{
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class times how a session gets going: when the menu is first shown,
+ * when the database is connected, when the pool is warmed and when the
+ * first menu option, i.e. the first query, is done, each counted from the
+ * launch of the program. The launch is the dbproject.launchMs property
+ * when the start script passes it, which also counts the start of the
+ * JVM, else the JVM start time.
+ *
+ * With dbproject.fastStart=true (java/fast.sh) DBproject connects in the
+ * background while the menu is shown, and then opens a few more
+ * connections and prepares the statements of the menu options on them.
+ *
+ */
+
+public class Startup{
+	public static final boolean FAST = Boolean.getBoolean("dbproject.fastStart");
+	//connections opened and prepared by the warm-up of a fast start
+	public static final int PREWARM_CONNECTIONS = Integer.getInteger("dbproject.startup.connections", 2);
+
+	public static final int MENU = 0;
+	public static final int CONNECTED = 1;
+	public static final int WARMED = 2;
+	public static final int FIRST_QUERY = 3;
+	private static final String[] PHASES = { "menu", "connected", "warmed", "first query" };
+
+	//System.currentTimeMillis() and System.nanoTime() at the same moment, to turn one into the other
+	private final long _createdMillis = System.currentTimeMillis();
+	private final long _createdNanos = System.nanoTime();
+	//the System.nanoTime() of each phase, 0 until reached
+	private final AtomicLongArray _at = new AtomicLongArray(PHASES.length);
+	private final AtomicLong _waitNanos = new AtomicLong();
+
+	/**
+	 * Method to note that a phase is reached. Only the first time counts.
+	 */
+	public void mark(int phase){
+		if (this._at.get(phase) == 0) this._at.compareAndSet(phase, 0, System.nanoTime());
+	}
+
+	/**
+	 * Method to count time the menu spent waiting for the database to connect.
+	 */
+	public void waited(long nanos){
+		this._waitNanos.addAndGet(nanos);
+	}
+
+	private long launchMillis(){
+		Long launch = Long.getLong("dbproject.launchMs");
+		return launch != null ? launch : ManagementFactory.getRuntimeMXBean().getStartTime();
+	}
+
+	/**
+	 * @return the time of each phase since the launch, for the log
+	 */
+	public String report(){
+		long launch = launchMillis();
+		StringBuilder sb = new StringBuilder("startup:");
+		for (int i = 0; i < PHASES.length; ++i){
+			long at = this._at.get(i);
+			sb.append(i == 0 ? " " : ", ").append(PHASES[i]).append(' ');
+			if (at == 0){
+				sb.append('-');
+				continue;
+			}//end if
+			double millis = this._createdMillis - launch + (at - this._createdNanos) / 1e6;
+			sb.append(String.format("%.0f ms", millis));
+		}//end for
+		sb.append(" after launch");
+		if (FAST) sb.append(String.format(", the menu waited %.0f ms for the database (fast start)", this._waitNanos.get() / 1e6));
+		return sb.toString();
+	}
+}
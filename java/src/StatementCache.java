@@ -0,0 +1,169 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the prepared statements of one physical connection so
+ * that a query shape (the SQL text with '?' placeholders) is only parsed
+ * once per connection. The least recently used statement is closed when
+ * the cache is full.
+ *
+ */
+
+public class StatementCache{
+	//default number of statements kept per connection
+	public static final int DEFAULT_CAPACITY = Integer.getInteger("dbproject.statementCache.size", 64);
+	//default number of executions before the driver switches to a server side prepare
+	public static final int DEFAULT_PREPARE_THRESHOLD = Integer.getInteger("dbproject.prepareThreshold", 5);
+
+	/**
+	 * One cached statement and the number of times it was handed out.
+	 */
+	private static class Entry{
+		final PreparedStatement stmt;
+		long uses = 0;
+
+		Entry(PreparedStatement stmt){
+			this.stmt = stmt;
+		}
+	}
+
+	private final Connection _connection;
+	private final int _capacity;
+	private final int _prepareThreshold;
+	private final LinkedHashMap<String, Entry> _statements;
+
+	//counters
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	private long _coldCount = 0;
+	private long _coldNanos = 0;
+	private long _warmCount = 0;
+	private long _warmNanos = 0;
+
+	public StatementCache(Connection connection){
+		this(connection, DEFAULT_CAPACITY, DEFAULT_PREPARE_THRESHOLD);
+	}
+
+	public StatementCache(Connection connection, int capacity, int prepareThreshold){
+		this._connection = connection;
+		this._capacity = Math.max(1, capacity);
+		this._prepareThreshold = prepareThreshold;
+		//access ordered, so the eldest entry is the least recently used one
+		this._statements = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Method to obtain the prepared statement for the given SQL shape. The
+	 * statement is owned by the cache and must not be closed by the caller,
+	 * the result sets it produces must.
+	 *
+	 * @param sql the SQL string with '?' placeholders
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement can not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		Entry entry = this._statements.get(sql);
+		if (entry != null){
+			this._hits++;
+		}else{
+			this._misses++;
+			PreparedStatement stmt = this._connection.prepareStatement(sql);
+			if (stmt.isWrapperFor(PGStatement.class)){
+				stmt.unwrap(PGStatement.class).setPrepareThreshold(this._prepareThreshold);
+			}//end if
+			entry = new Entry(stmt);
+			this._statements.put(sql, entry);
+			evict();
+		}//end if
+		entry.uses++;
+		entry.stmt.clearParameters();
+		return entry.stmt;
+	}//end prepare
+
+	/**
+	 * Method to record how long one execution of a cached statement took.
+	 * Executions before the prepare threshold are planned on every call,
+	 * the ones after it reuse the server side plan.
+	 *
+	 * @param sql the SQL string passed to prepare
+	 * @param nanos the elapsed execution time in nanoseconds
+	 */
+	public synchronized void record(String sql, long nanos){
+		Entry entry = this._statements.get(sql);
+		if (entry == null) return;
+		if (this._prepareThreshold > 0 && entry.uses > this._prepareThreshold){
+			this._warmCount++;
+			this._warmNanos += nanos;
+		}else{
+			this._coldCount++;
+			this._coldNanos += nanos;
+		}//end if
+	}//end record
+
+	private void evict(){
+		Iterator<Map.Entry<String, Entry>> it = this._statements.entrySet().iterator();
+		while (this._statements.size() > this._capacity && it.hasNext()){
+			Entry eldest = it.next().getValue();
+			it.remove();
+			this._evictions++;
+			try{
+				eldest.stmt.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}//end while
+	}//end evict
+
+	public synchronized long getHits(){ return this._hits; }
+	public synchronized long getMisses(){ return this._misses; }
+	public synchronized long getEvictions(){ return this._evictions; }
+	public synchronized int size(){ return this._statements.size(); }
+
+	/**
+	 * @return the fraction of prepare calls served from the cache
+	 */
+	public synchronized double getHitRate(){
+		long total = this._hits + this._misses;
+		return total == 0 ? 0.0 : (double) this._hits / total;
+	}
+
+	/**
+	 * Estimates the planning time saved by server side prepared statements as
+	 * the difference between the mean cold and mean warm execution time,
+	 * multiplied by the number of warm executions.
+	 *
+	 * @return the estimated time saved in nanoseconds
+	 */
+	public synchronized long getPlanNanosSaved(){
+		if (this._coldCount == 0 || this._warmCount == 0) return 0;
+		long perCall = this._coldNanos / this._coldCount - this._warmNanos / this._warmCount;
+		return Math.max(0, perCall) * this._warmCount;
+	}
+
+	public synchronized String stats(){
+		return String.format("statements: %d cached, %d hits, %d misses, %d evictions, hit rate %.1f%%, ~%.3f ms plan time saved",
+			this._statements.size(), this._hits, this._misses, this._evictions,
+			getHitRate() * 100.0, getPlanNanosSaved() / 1e6);
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public synchronized void close(){
+		for (Entry entry : this._statements.values()){
+			try{
+				entry.stmt.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}//end for
+		this._statements.clear();
+	}//end close
+}
@@ -3,10 +3,15 @@ echo "creating db named ... "$USER"_DB"
 createdb -h localhost -p $PGPORT $USER"_DB"
 pg_ctl status
 
-echo "Copying csv files ... "
-sleep 1
-cp ../data/*.csv /tmp/$USER/myDB/data/.
-
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+
+echo "Loading csv files ... "
+(cd ../java && ./load.sh)
+
+echo "Applying migrations ... "
+(cd ../java && ./migrate.sh)
+
+echo "Creating Appointment partitions ... "
+(cd ../java && ./partitions.sh)
@@ -1,223 +1,303 @@
-DROP TABLE IF EXISTS Hospital CASCADE;--OK
-DROP TABLE IF EXISTS Patient CASCADE;--OK
-DROP TABLE IF EXISTS Department CASCADE;--OK
-DROP TABLE IF EXISTS Appointment CASCADE;--OK
-DROP TABLE IF EXISTS Doctor CASCADE;--OK
-DROP TABLE IF EXISTS Staff CASCADE;--OK
-DROP TABLE IF EXISTS has_appointment CASCADE;--OK
-DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
-DROP TABLE IF EXISTS searches CASCADE;--OK
-DROP TABLE IF EXISTS schedules CASCADE;--OK
-
-
--------------
----DOMAINS---
--------------
-CREATE DOMAIN _GENDER VARCHAR(1) CHECK (VALUE IN ( 'F' , 'M' ) );
-CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
-CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
-CREATE DOMAIN _STATUS VARCHAR(2) CHECK (VALUE IN ('PA', 'AC', 'AV', 'WL')); --Past, Active, Available, Waitlisted
-
-------------
----TABLES---
-------------
-CREATE TABLE Patient
-(
-	patient_ID INTEGER NOT NULL,
-	name VARCHAR(128) NOT NULL,	
-	gtype _GENDER NOT NULL,
-	age INTEGER NOT NULL,
-	address VARCHAR(256),
-	number_of_appts INTEGER,
-	PRIMARY KEY (patient_ID)
-);
-
-CREATE TABLE Hospital
-(
-	hospital_ID INTEGER NOT NULL,
-	name VARCHAR(64) NOT NULL,	
-	PRIMARY KEY (hospital_ID)
-);
-
-CREATE TABLE Department
-(
-	dept_ID INTEGER NOT NULL,
-	name VARCHAR(32) NOT NULL,
-	hid INTEGER NOT NULL,
-	PRIMARY KEY (dept_ID),
-	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID)
-);
-
-CREATE TABLE Staff
-(
-	staff_ID INTEGER NOT NULL,
-	name VARCHAR(128) NOT NULL,	
-	hid INTEGER NOT NULL,
-	PRIMARY KEY (staff_ID),
-	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID)
-);
-
-CREATE TABLE Doctor
-(
-	doctor_ID INTEGER NOT NULL,
-	name VARCHAR(128),
-	specialty VARCHAR(24),
-	did INTEGER NOT NULL,
-	PRIMARY KEY (doctor_ID),
-	FOREIGN KEY (did) REFERENCES Department(dept_ID)
-);
-
-
-CREATE TABLE Appointment
-(	
-	appnt_ID INTEGER NOT NULL,	
-	adate DATE NOT NULL,
-	time_slot VARCHAR(11),
-	status _STATUS,
-	PRIMARY KEY (appnt_ID)
-);
-
-
-
----------------
----RELATIONS---
----------------
-
-CREATE TABLE request_maintenance
-(
-	patient_per_hour INTEGER NOT NULL,
-	dept_name VARCHAR(32) NOT NULL,
-	time_slot VARCHAR(11) NOT NULL,
-	did INTEGER NOT NULL,	
-	sid INTEGER NOT NULL,	
-	PRIMARY KEY (did,sid),
-	FOREIGN KEY (did) REFERENCES Doctor(doctor_ID),
-	FOREIGN KEY (sid) REFERENCES Staff(staff_ID)	
-);
-
-CREATE TABLE searches
-(
-	hid INTEGER NOT NULL,	
-	pid INTEGER NOT NULL,
-	aid INTEGER NOT NULL,
-	PRIMARY KEY (hid,pid,aid),
-	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID),
-	FOREIGN KEY (pid) REFERENCES Patient(patient_ID),
-	FOREIGN KEY (aid) REFERENCES Appointment(appnt_ID)
-);
-
-CREATE TABLE schedules
-(
-	appt_id INTEGER NOT NULL,
-	staff_id INTEGER NOT NULL,	
-	PRIMARY KEY (appt_id,staff_id),
-	FOREIGN KEY (appt_id) REFERENCES Appointment(appnt_ID),
-	FOREIGN KEY (staff_id) REFERENCES Staff(staff_ID)
-);
-
-CREATE TABLE has_appointment
-(
-	appt_id INTEGER NOT NULL,
-	doctor_id INTEGER NOT NULL,	
-	PRIMARY KEY (appt_id,doctor_id),
-	FOREIGN KEY (appt_id) REFERENCES Appointment(appnt_ID),
-	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID)
-);
-
-----------------------------
--- INSERT DATA STATEMENTS --
-----------------------------
-
-COPY Patient (
-	patient_ID ,
-	name ,	
-	gtype ,
-	age ,
-	address ,
-	number_of_appts
-)
-FROM 'patient.csv'
-WITH DELIMITER ',';
-
-
-COPY Hospital (
-	hospital_ID,
-	name
-)
-FROM 'hospital.csv'
-WITH DELIMITER ',';
-
-
-COPY Department (
-	dept_ID,
-	name,
-	hid
-)
-FROM 'department.csv'
-WITH DELIMITER ',';
-
-
-COPY Staff (
-	staff_ID,
-	name,
-	hid
-)
-FROM 'staff.csv'
-WITH DELIMITER ',';
-
-
-COPY Doctor (
-	doctor_ID,
-	name,
-	specialty,
-	did
-)
-FROM 'doctor.csv'
-WITH DELIMITER ',';
-
-
-COPY Appointment (
-	appnt_ID,
-	adate,
-	time_slot,
-	status
-)
-FROM 'appointment.csv'
-WITH DELIMITER ',';
-
-
-COPY request_maintenance (
-	patient_per_hour,
-	dept_name,
-	time_slot,
-	did,
-	sid
-)
-FROM 'request_maintenance.csv'
-WITH DELIMITER ',';
-
-
-COPY searches (
-	hid,
-	pid,
-	aid
-)
-FROM 'searches.csv'
-WITH DELIMITER ',';
-
-
-COPY schedules (
-	appt_id,
-	staff_id
-)
-FROM 'schedules.csv'
-WITH DELIMITER ',';
-
-
-COPY has_appointment (
-	appt_id,
-	doctor_id
-)
-FROM 'has_appointment.csv'
-WITH DELIMITER ',';
-
+DROP TABLE IF EXISTS Hospital CASCADE;--OK
+DROP TABLE IF EXISTS Patient CASCADE;--OK
+DROP TABLE IF EXISTS Department CASCADE;--OK
+DROP TABLE IF EXISTS Appointment CASCADE;--OK
+DROP TABLE IF EXISTS appointment_ids CASCADE;
+DROP TABLE IF EXISTS Doctor CASCADE;--OK
+DROP TABLE IF EXISTS Staff CASCADE;--OK
+DROP TABLE IF EXISTS has_appointment CASCADE;--OK
+DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
+DROP TABLE IF EXISTS searches CASCADE;--OK
+DROP TABLE IF EXISTS schedules CASCADE;--OK
+DROP TABLE IF EXISTS schema_migrations;
+DROP TABLE IF EXISTS doctor_status_count;
+DROP TABLE IF EXISTS appointment_event;
+DROP TABLE IF EXISTS appointment_event_offset;
+DROP SEQUENCE IF EXISTS doctor_id_seq;
+DROP SEQUENCE IF EXISTS patient_id_seq;
+DROP SEQUENCE IF EXISTS appointment_id_seq;
+
+
+-------------
+---DOMAINS---
+-------------
+CREATE DOMAIN _GENDER VARCHAR(1) CHECK (VALUE IN ( 'F' , 'M' ) );
+CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
+CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
+CREATE DOMAIN _STATUS VARCHAR(2) CHECK (VALUE IN ('PA', 'AC', 'AV', 'WL')); --Past, Active, Available, Waitlisted
+
+------------
+---TABLES---
+------------
+CREATE TABLE Patient
+(
+	patient_ID INTEGER NOT NULL,
+	name VARCHAR(128) NOT NULL,	
+	gtype _GENDER NOT NULL,
+	age INTEGER NOT NULL,
+	address VARCHAR(256),
+	number_of_appts INTEGER,
+	PRIMARY KEY (patient_ID)
+);
+
+CREATE TABLE Hospital
+(
+	hospital_ID INTEGER NOT NULL,
+	name VARCHAR(64) NOT NULL,	
+	PRIMARY KEY (hospital_ID)
+);
+
+CREATE TABLE Department
+(
+	dept_ID INTEGER NOT NULL,
+	name VARCHAR(32) NOT NULL,
+	hid INTEGER NOT NULL,
+	PRIMARY KEY (dept_ID),
+	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID)
+);
+
+CREATE TABLE Staff
+(
+	staff_ID INTEGER NOT NULL,
+	name VARCHAR(128) NOT NULL,	
+	hid INTEGER NOT NULL,
+	PRIMARY KEY (staff_ID),
+	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID)
+);
+
+CREATE TABLE Doctor
+(
+	doctor_ID INTEGER NOT NULL,
+	name VARCHAR(128),
+	specialty VARCHAR(24),
+	did INTEGER NOT NULL,
+	PRIMARY KEY (doctor_ID),
+	FOREIGN KEY (did) REFERENCES Department(dept_ID)
+);
+
+
+-- Partitioned by month of adate, so queries on a date or a date range
+-- only read the partitions of those months (appointment_YYYY_MM). Years
+-- that are archived are one partition each (appointment_pa_YYYY), dates
+-- without a partition yet go to appointment_default. The partitions are
+-- kept by the functions under PARTITIONS below, run by java/partitions.sh.
+-- The partition key must be part of the primary key, so appnt_ID is not
+-- unique on its own and the tables below can not reference it. The ids
+-- are kept unique in appointment_ids by the appointment_id_kept trigger,
+-- and the tables below reference that instead. New ids come from
+-- appointment_id_seq (IdAllocator).
+CREATE TABLE Appointment
+(	
+	appnt_ID INTEGER NOT NULL,	
+	adate DATE NOT NULL,
+	time_slot VARCHAR(11),
+	status _STATUS,
+	PRIMARY KEY (appnt_ID, adate)
+) PARTITION BY RANGE (adate);
+
+CREATE TABLE appointment_default PARTITION OF Appointment DEFAULT;
+
+-- One row per appnt_ID of Appointment, so a second appointment with the
+-- same id fails on its primary key.
+CREATE TABLE appointment_ids
+(
+	appnt_ID INTEGER NOT NULL,
+	PRIMARY KEY (appnt_ID)
+);
+
+
+
+---------------
+---RELATIONS---
+---------------
+
+CREATE TABLE request_maintenance
+(
+	patient_per_hour INTEGER NOT NULL,
+	dept_name VARCHAR(32) NOT NULL,
+	time_slot VARCHAR(11) NOT NULL,
+	did INTEGER NOT NULL,	
+	sid INTEGER NOT NULL,	
+	PRIMARY KEY (did,sid),
+	FOREIGN KEY (did) REFERENCES Doctor(doctor_ID),
+	FOREIGN KEY (sid) REFERENCES Staff(staff_ID)	
+);
+
+CREATE TABLE searches
+(
+	hid INTEGER NOT NULL,	
+	pid INTEGER NOT NULL,
+	aid INTEGER NOT NULL,
+	PRIMARY KEY (hid,pid,aid),
+	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID),
+	FOREIGN KEY (pid) REFERENCES Patient(patient_ID),
+	FOREIGN KEY (aid) REFERENCES appointment_ids(appnt_ID) DEFERRABLE INITIALLY DEFERRED
+);
+
+CREATE TABLE schedules
+(
+	appt_id INTEGER NOT NULL,
+	staff_id INTEGER NOT NULL,	
+	PRIMARY KEY (appt_id,staff_id),
+	FOREIGN KEY (appt_id) REFERENCES appointment_ids(appnt_ID) DEFERRABLE INITIALLY DEFERRED,
+	FOREIGN KEY (staff_id) REFERENCES Staff(staff_ID)
+);
+
+CREATE TABLE has_appointment
+(
+	appt_id INTEGER NOT NULL,
+	doctor_id INTEGER NOT NULL,	
+	PRIMARY KEY (appt_id,doctor_id),
+	FOREIGN KEY (appt_id) REFERENCES appointment_ids(appnt_ID) DEFERRABLE INITIALLY DEFERRED,
+	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID)
+);
+
+---------------
+---SEQUENCES---
+---------------
+-- Ids for new rows. Each nextval reserves a block of 50 ids for the client
+-- (IdAllocator.BLOCK_SIZE). BulkLoader moves them past the loaded data.
+CREATE SEQUENCE doctor_id_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE patient_id_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE appointment_id_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+
+----------------
+---PARTITIONS---
+----------------
+-- The monthly partition of Appointment holding a date, created when it is
+-- missing. Rows of that month already in appointment_default are moved
+-- into it. Returns whether a partition was created.
+CREATE OR REPLACE FUNCTION appointment_partition(d DATE) RETURNS BOOLEAN AS $$
+DECLARE
+	lo DATE := date_trunc('month', d);
+	hi DATE := date_trunc('month', d) + INTERVAL '1 month';
+	part TEXT := 'appointment_' || to_char(d, 'YYYY_MM');
+	prev TEXT := current_setting('dbproject.defer_counts', true);
+	prev_moving TEXT := current_setting('dbproject.moving_rows', true);
+BEGIN
+	IF to_regclass(part) IS NOT NULL OR to_regclass('appointment_pa_' || to_char(d, 'YYYY')) IS NOT NULL THEN
+		RETURN false;
+	END IF;
+	-- the rows only change partition, the count, availability and id triggers must not see them go
+	PERFORM set_config('dbproject.defer_counts', 'on', true);
+	PERFORM set_config('dbproject.moving_rows', 'on', true);
+	EXECUTE format('CREATE TABLE %I (LIKE Appointment INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part);
+	EXECUTE format('WITH moved AS (DELETE FROM appointment_default WHERE adate >= %L AND adate < %L RETURNING *) INSERT INTO %I SELECT * FROM moved', lo, hi, part);
+	EXECUTE format('ALTER TABLE Appointment ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', part, lo, hi);
+	PERFORM set_config('dbproject.defer_counts', COALESCE(prev, 'off'), true);
+	PERFORM set_config('dbproject.moving_rows', COALESCE(prev_moving, 'off'), true);
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The partitions of this month and the given number of months ahead, and
+-- of every month with rows in appointment_default. Returns the number of
+-- partitions created.
+CREATE OR REPLACE FUNCTION appointment_partitions(ahead INTEGER) RETURNS INTEGER AS $$
+DECLARE
+	d DATE;
+	created INTEGER := 0;
+BEGIN
+	FOR d IN SELECT CAST(date_trunc('month', current_date) + i * INTERVAL '1 month' AS DATE) FROM generate_series(0, ahead) i
+		UNION SELECT DISTINCT CAST(date_trunc('month', adate) AS DATE) FROM appointment_default ORDER BY 1 LOOP
+		IF appointment_partition(d) THEN
+			created := created + 1;
+		END IF;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Archive the appointments before a date: those not past yet become past
+-- (PA), through the count and availability triggers, and the monthly
+-- partitions of each year that ended by then are folded into one
+-- appointment_pa_YYYY partition. Returns the number of rows made past.
+CREATE OR REPLACE FUNCTION appointment_archive(before DATE) RETURNS BIGINT AS $$
+DECLARE
+	marked BIGINT;
+	y INTEGER;
+	part TEXT;
+	m TEXT;
+	prev TEXT := current_setting('dbproject.defer_counts', true);
+	prev_moving TEXT := current_setting('dbproject.moving_rows', true);
+BEGIN
+	UPDATE Appointment SET status = 'PA' WHERE adate < before AND status IS DISTINCT FROM 'PA';
+	GET DIAGNOSTICS marked = ROW_COUNT;
+	PERFORM set_config('dbproject.defer_counts', 'on', true);
+	PERFORM set_config('dbproject.moving_rows', 'on', true);
+	FOR y IN SELECT DISTINCT CAST(substr(C.relname, 13, 4) AS INTEGER) FROM pg_inherits I JOIN pg_class C ON C.oid = I.inhrelid
+		WHERE I.inhparent = 'appointment'::regclass AND C.relname ~ '^appointment_[0-9]{4}_[0-9]{2}$' ORDER BY 1 LOOP
+		EXIT WHEN make_date(y + 1, 1, 1) > before;
+		part := 'appointment_pa_' || y;
+		EXECUTE format('CREATE TABLE %I (LIKE Appointment INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part);
+		FOR m IN SELECT C.relname FROM pg_inherits I JOIN pg_class C ON C.oid = I.inhrelid
+			WHERE I.inhparent = 'appointment'::regclass AND C.relname ~ ('^appointment_' || y || '_[0-9]{2}$') LOOP
+			EXECUTE format('ALTER TABLE Appointment DETACH PARTITION %I', m);
+			EXECUTE format('INSERT INTO %I SELECT * FROM %I', part, m);
+			EXECUTE format('DROP TABLE %I', m);
+		END LOOP;
+		EXECUTE format('WITH moved AS (DELETE FROM appointment_default WHERE adate >= %L AND adate < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+			make_date(y, 1, 1), make_date(y + 1, 1, 1), part);
+		EXECUTE format('ALTER TABLE Appointment ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', part, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+	END LOOP;
+	PERFORM set_config('dbproject.defer_counts', COALESCE(prev, 'off'), true);
+	PERFORM set_config('dbproject.moving_rows', COALESCE(prev_moving, 'off'), true);
+	RETURN marked;
+END;
+$$ LANGUAGE plpgsql;
+
+--------------
+---TRIGGERS---
+--------------
+-- Tell ReferenceCache which reference rows changed: NOTIFY reference_changed
+-- with '<table>:<key>', the key column named by the trigger argument.
+CREATE OR REPLACE FUNCTION notify_reference_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM pg_notify('reference_changed', TG_TABLE_NAME || ':' || (row_to_json(OLD) ->> TG_ARGV[0]));
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM pg_notify('reference_changed', TG_TABLE_NAME || ':' || (row_to_json(NEW) ->> TG_ARGV[0]));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER doctor_changed AFTER INSERT OR UPDATE OR DELETE ON Doctor
+	FOR EACH ROW EXECUTE PROCEDURE notify_reference_change('doctor_id');
+CREATE TRIGGER department_changed AFTER INSERT OR UPDATE OR DELETE ON Department
+	FOR EACH ROW EXECUTE PROCEDURE notify_reference_change('dept_id');
+CREATE TRIGGER hospital_changed AFTER INSERT OR UPDATE OR DELETE ON Hospital
+	FOR EACH ROW EXECUTE PROCEDURE notify_reference_change('hospital_id');
+CREATE TRIGGER staff_changed AFTER INSERT OR UPDATE OR DELETE ON Staff
+	FOR EACH ROW EXECUTE PROCEDURE notify_reference_change('staff_id');
+CREATE TRIGGER request_maintenance_changed AFTER INSERT OR UPDATE OR DELETE ON request_maintenance
+	FOR EACH ROW EXECUTE PROCEDURE notify_reference_change('dept_name');
+
+-- Keep appointment_ids in step with Appointment. Unlike the count triggers
+-- this one also runs during a BulkLoader load; it is only off while the
+-- partition functions above move rows between partitions
+-- (dbproject.moving_rows). An UPDATE that moves a row to another
+-- partition runs as a DELETE and an INSERT, which is why the references
+-- to appointment_ids are only checked at commit.
+CREATE OR REPLACE FUNCTION keep_appointment_id() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.moving_rows', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO appointment_ids (appnt_ID) VALUES (NEW.appnt_ID);
+	ELSIF TG_OP = 'DELETE' THEN
+		DELETE FROM appointment_ids WHERE appnt_ID = OLD.appnt_ID;
+	ELSIF OLD.appnt_ID <> NEW.appnt_ID THEN
+		UPDATE appointment_ids SET appnt_ID = NEW.appnt_ID WHERE appnt_ID = OLD.appnt_ID;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER appointment_id_kept AFTER INSERT OR DELETE OR UPDATE OF appnt_ID ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE keep_appointment_id();
+
+-- Data is loaded from the client by java/load.sh (BulkLoader).
+-- sql/load.sql is the old server side COPY, which needs the csv files in PGDATA.
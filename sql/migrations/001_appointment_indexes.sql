@@ -0,0 +1,23 @@
+-- Indexes for the appointment queries of the menu. create.sql only has
+-- primary keys, so options 5 to 8 scanned the whole history. Applied by
+-- java/migrate.sh after the data is loaded, building them is cheaper then.
+
+-- option 5 (status AC/AV in a date range) and option 8 (one status)
+CREATE INDEX IF NOT EXISTS appointment_status_adate ON Appointment (status, adate);
+
+-- option 6 and BookingEngine.bookFirstAvailable only look at available slots
+CREATE INDEX IF NOT EXISTS appointment_available_adate ON Appointment (adate, appnt_ID) WHERE status = 'AV';
+
+-- options 5 to 7 go from a doctor to the doctor's appointments
+CREATE INDEX IF NOT EXISTS has_appointment_doctor ON has_appointment (doctor_id, appt_id);
+
+-- option 8 goes from an appointment to the patients who searched it
+CREATE INDEX IF NOT EXISTS searches_aid ON searches (aid, pid);
+
+-- ReferenceCache.getMaintenance looks request_maintenance up by department name
+CREATE INDEX IF NOT EXISTS request_maintenance_dept_name ON request_maintenance (dept_name);
+
+ANALYZE Appointment;
+ANALYZE has_appointment;
+ANALYZE searches;
+ANALYZE request_maintenance;
@@ -0,0 +1,124 @@
+-- Per doctor and appointment status counts behind options 7 and 8, kept
+-- up to date by triggers so the reports read one row per doctor and
+-- status instead of joining has_appointment, Appointment and searches.
+--
+--   appointments  has_appointment rows of the doctor whose appointment has the status
+--   patients      searches rows of those appointments, what option 8 counts
+--
+-- Each trigger locks the Appointment row it counts, so a status change,
+-- a booking and a search of the same appointment are counted one after
+-- the other. BulkLoader turns the triggers off for its connections with
+-- dbproject.defer_counts and calls doctor_status_count_rebuild() after.
+
+CREATE TABLE IF NOT EXISTS doctor_status_count
+(
+	doctor_id INTEGER NOT NULL,
+	status VARCHAR(2) NOT NULL,	-- '' for appointments without a status
+	appointments BIGINT NOT NULL DEFAULT 0,
+	patients BIGINT NOT NULL DEFAULT 0,
+	PRIMARY KEY (doctor_id, status)
+);
+
+CREATE OR REPLACE FUNCTION doctor_status_count_add(d INTEGER, s VARCHAR, appts BIGINT, pats BIGINT) RETURNS void AS $$
+BEGIN
+	IF appts = 0 AND pats = 0 THEN
+		RETURN;
+	END IF;
+	INSERT INTO doctor_status_count AS c (doctor_id, status, appointments, patients)
+		VALUES (d, COALESCE(s, ''), appts, pats)
+		ON CONFLICT (doctor_id, status) DO UPDATE
+		SET appointments = c.appointments + EXCLUDED.appointments, patients = c.patients + EXCLUDED.patients;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a doctor gained or lost an appointment
+CREATE OR REPLACE FUNCTION has_appointment_counted() RETURNS trigger AS $$
+DECLARE
+	s VARCHAR(2);
+	n BIGINT;
+BEGIN
+	IF current_setting('dbproject.defer_counts', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		SELECT status INTO s FROM Appointment WHERE appnt_ID = OLD.appt_id FOR NO KEY UPDATE;
+		SELECT count(*) INTO n FROM searches WHERE aid = OLD.appt_id;
+		PERFORM doctor_status_count_add(OLD.doctor_id, s, -1, -n);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		SELECT status INTO s FROM Appointment WHERE appnt_ID = NEW.appt_id FOR NO KEY UPDATE;
+		SELECT count(*) INTO n FROM searches WHERE aid = NEW.appt_id;
+		PERFORM doctor_status_count_add(NEW.doctor_id, s, 1, n);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- an appointment changed status, move it and its searches for each of its doctors
+CREATE OR REPLACE FUNCTION appointment_status_counted() RETURNS trigger AS $$
+DECLARE
+	d INTEGER;
+	n BIGINT;
+BEGIN
+	IF current_setting('dbproject.defer_counts', true) = 'on' OR OLD.status IS NOT DISTINCT FROM NEW.status THEN
+		RETURN NULL;
+	END IF;
+	SELECT count(*) INTO n FROM searches WHERE aid = NEW.appnt_ID;
+	FOR d IN SELECT doctor_id FROM has_appointment WHERE appt_id = NEW.appnt_ID LOOP
+		PERFORM doctor_status_count_add(d, OLD.status, -1, -n);
+		PERFORM doctor_status_count_add(d, NEW.status, 1, n);
+	END LOOP;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a patient searched an appointment, or the search was removed
+CREATE OR REPLACE FUNCTION searches_counted() RETURNS trigger AS $$
+DECLARE
+	s VARCHAR(2);
+	d INTEGER;
+BEGIN
+	IF current_setting('dbproject.defer_counts', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		SELECT status INTO s FROM Appointment WHERE appnt_ID = OLD.aid FOR NO KEY UPDATE;
+		FOR d IN SELECT doctor_id FROM has_appointment WHERE appt_id = OLD.aid LOOP
+			PERFORM doctor_status_count_add(d, s, 0, -1);
+		END LOOP;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		SELECT status INTO s FROM Appointment WHERE appnt_ID = NEW.aid FOR NO KEY UPDATE;
+		FOR d IN SELECT doctor_id FROM has_appointment WHERE appt_id = NEW.aid LOOP
+			PERFORM doctor_status_count_add(d, s, 0, 1);
+		END LOOP;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- recount everything, after a bulk load or to repair the counts
+CREATE OR REPLACE FUNCTION doctor_status_count_rebuild() RETURNS void AS $$
+BEGIN
+	LOCK TABLE Appointment, has_appointment, searches IN SHARE MODE;
+	DELETE FROM doctor_status_count;
+	INSERT INTO doctor_status_count (doctor_id, status, appointments, patients)
+	SELECT H.doctor_id, COALESCE(A.status, ''), count(*), COALESCE(SUM(S.n), 0)
+	FROM has_appointment H
+	JOIN Appointment A ON A.appnt_ID = H.appt_id
+	LEFT JOIN (SELECT aid, count(*) AS n FROM searches GROUP BY aid) S ON S.aid = H.appt_id
+	GROUP BY H.doctor_id, COALESCE(A.status, '');
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS has_appointment_counted ON has_appointment;
+CREATE TRIGGER has_appointment_counted AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+	FOR EACH ROW EXECUTE PROCEDURE has_appointment_counted();
+DROP TRIGGER IF EXISTS appointment_status_counted ON Appointment;
+CREATE TRIGGER appointment_status_counted AFTER UPDATE OF status ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE appointment_status_counted();
+DROP TRIGGER IF EXISTS searches_counted ON searches;
+CREATE TRIGGER searches_counted AFTER INSERT OR UPDATE OR DELETE ON searches
+	FOR EACH ROW EXECUTE PROCEDURE searches_counted();
+
+SELECT doctor_status_count_rebuild();
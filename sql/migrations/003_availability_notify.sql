@@ -0,0 +1,28 @@
+-- Tell AvailabilityIndex which appointments may have changed availability:
+-- NOTIFY availability_changed with the appointment id, from Appointment
+-- and has_appointment. Notifications of one transaction with the same id
+-- are delivered once, after the commit. Like the doctor_status_count
+-- triggers they are off during a BulkLoader load, which notifies '*'
+-- (reload everything) when it is done.
+
+CREATE OR REPLACE FUNCTION notify_availability_change() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.defer_counts', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM pg_notify('availability_changed', row_to_json(OLD) ->> TG_ARGV[0]);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM pg_notify('availability_changed', row_to_json(NEW) ->> TG_ARGV[0]);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS appointment_availability_changed ON Appointment;
+CREATE TRIGGER appointment_availability_changed AFTER INSERT OR UPDATE OR DELETE ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE notify_availability_change('appnt_id');
+DROP TRIGGER IF EXISTS has_appointment_availability_changed ON has_appointment;
+CREATE TRIGGER has_appointment_availability_changed AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+	FOR EACH ROW EXECUTE PROCEDURE notify_availability_change('appt_id');
@@ -0,0 +1,49 @@
+-- Outbox of appointment status changes (AV -> AC, AC -> WL, -> PA, ...),
+-- written by a trigger in the transaction that changes the status, so an
+-- event exists if and only if the change committed. OutboxConsumer reads
+-- it in event_id order and keeps its position in appointment_event_offset.
+--
+-- event_id is taken when the row is written, not when it commits, so a
+-- reader going by event_id alone could pass an event whose transaction
+-- commits later. Each event keeps the id of its transaction instead, and
+-- readers go by (txid, event_id) and only take events of transactions
+-- older than every transaction still running: those are all final.
+
+CREATE TABLE IF NOT EXISTS appointment_event
+(
+	event_id BIGSERIAL PRIMARY KEY,
+	appnt_id INTEGER NOT NULL,
+	adate DATE NOT NULL,
+	old_status VARCHAR(2),
+	new_status VARCHAR(2),
+	txid BIGINT NOT NULL DEFAULT txid_current(),
+	created_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+
+CREATE INDEX IF NOT EXISTS appointment_event_txid ON appointment_event (txid, event_id);
+
+-- the last event each consumer has handled
+CREATE TABLE IF NOT EXISTS appointment_event_offset
+(
+	consumer VARCHAR(64) PRIMARY KEY,
+	txid BIGINT NOT NULL,
+	event_id BIGINT NOT NULL,
+	updated_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+
+-- one NOTIFY per transaction: notifications with the same payload are sent once
+CREATE OR REPLACE FUNCTION appointment_event_written() RETURNS trigger AS $$
+BEGIN
+	IF OLD.status IS NOT DISTINCT FROM NEW.status THEN
+		RETURN NULL;
+	END IF;
+	INSERT INTO appointment_event (appnt_id, adate, old_status, new_status)
+		VALUES (NEW.appnt_ID, NEW.adate, OLD.status, NEW.status);
+	PERFORM pg_notify('appointment_events', '');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS appointment_event_written ON Appointment;
+CREATE TRIGGER appointment_event_written AFTER UPDATE OF status ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE appointment_event_written();